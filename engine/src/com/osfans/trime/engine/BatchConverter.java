@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Converts romanized text to hanzi with the rules and word ranking of a
+ * schema. Input is read in chunks of lines that are converted in parallel
+ * and written in order.
+ * Each run of syllables is segmented greedily, longest known phrase first,
+ * and takes the top ranked word; anything else is copied.
+ * The storage must allow queries from several threads, such as a
+ * {@link StoragePool} with a connection per thread.
+ */
+public class BatchConverter {
+  private static final int MAX_PHRASE = 4;
+  private static final int CHUNK_LINES = 256;
+
+  private final Storage storage;
+  private final Speller speller;
+  private final String table;
+  private final int threads;
+
+  /** Counts of a conversion run. */
+  public static class Stats {
+    public long chars, lines, words;
+    public long nanos;
+
+    /** Returns the input throughput in MB/s, counting a char as a byte. */
+    public double getMBps() {
+      return nanos == 0 ? 0 : chars / 1e6 / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d lines, %d words, %.2f MB in %.2f s, %.2f MB/s",
+        lines, words, chars / 1e6, nanos / 1e9, getMBps());
+    }
+  }
+
+  public BatchConverter(Storage storage, Speller speller, String table, int threads) {
+    this.storage = storage;
+    this.speller = speller;
+    this.table = table;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Returns the tables that may hold a code; override for sharded
+   * dictionaries.
+   */
+  protected List<String> getTables(String code) {
+    return Collections.singletonList(table);
+  }
+
+  public Stats convert(Reader in, Writer out) throws IOException {
+    Stats stats = new Stats();
+    long start = System.nanoTime();
+    BufferedReader br = new BufferedReader(in);
+    ChunkWriter writer = new ChunkWriter(out, threads);
+    final long[] words = new long[1];
+    try {
+      boolean eof = false;
+      while (!eof) {
+        final List<String> lines = new ArrayList<String>(CHUNK_LINES);
+        String line;
+        while (lines.size() < CHUNK_LINES && (line = br.readLine()) != null) {
+          lines.add(line);
+          stats.chars += line.length() + 1;
+        }
+        if (lines.size() < CHUNK_LINES) eof = true;
+        if (lines.isEmpty()) break;
+        stats.lines += lines.size();
+        writer.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            Map<String, String> cache = new HashMap<String, String>();
+            StringBuilder sb = new StringBuilder();
+            int n = 0;
+            for (String line: lines) {
+              n += convertLine(line, sb, cache);
+              sb.append('\n');
+            }
+            synchronized (words) {
+              words[0] += n;
+            }
+            return sb.toString();
+          }
+        });
+      }
+    } finally {
+      writer.finish();
+    }
+    stats.words = words[0];
+    stats.nanos = System.nanoTime() - start;
+    return stats;
+  }
+
+  private boolean isCodeChar(char c) {
+    return c != ' ' && !speller.isDelimiter(String.valueOf(c)) && speller.isAlphabet(String.valueOf(c), true);
+  }
+
+  private boolean isSeparator(char c) {
+    return c == ' ' || speller.isDelimiter(String.valueOf(c));
+  }
+
+  /**
+   * Converts one line into {@code sb}.
+   *
+   * @return the number of words converted.
+   */
+  private int convertLine(String line, StringBuilder sb, Map<String, String> cache) {
+    int n = line.length();
+    int count = 0;
+    int i = 0;
+    List<String> syllables = new ArrayList<String>();
+    while (i < n) {
+      if (!isCodeChar(line.charAt(i))) {
+        sb.append(line.charAt(i++));
+        continue;
+      }
+      syllables.clear();
+      int end = i;
+      while (i < n && isCodeChar(line.charAt(i))) { //以空格或分隔符相連的音節
+        int j = i;
+        while (j < n && isCodeChar(line.charAt(j))) j++;
+        syllables.add(line.substring(i, j));
+        end = j;
+        i = j;
+        if (i + 1 < n && isSeparator(line.charAt(i)) && isCodeChar(line.charAt(i + 1))) i++;
+      }
+      i = end;
+      count += convertSyllables(syllables, sb, cache);
+    }
+    return count;
+  }
+
+  private int convertSyllables(List<String> syllables, StringBuilder sb, Map<String, String> cache) {
+    int count = 0;
+    int n = syllables.size();
+    boolean lastRaw = false;
+    for (int i = 0; i < n;) {
+      String hz = null;
+      int len = Math.min(MAX_PHRASE, n - i);
+      for (; len > 0; len--) {
+        hz = lookup(syllables.subList(i, i + len), cache);
+        if (hz != null) break;
+      }
+      boolean raw = (hz == null);
+      if (i > 0 && (raw || lastRaw)) sb.append(' '); //未轉換的音節保留空格
+      if (raw) {
+        sb.append(syllables.get(i));
+        len = 1;
+      } else {
+        sb.append(hz);
+        count++;
+      }
+      lastRaw = raw;
+      i += len;
+    }
+    return count;
+  }
+
+  /** Returns the top ranked word whose code is exactly the syllables. */
+  private String lookup(List<String> syllables, Map<String, String> cache) {
+    StringBuilder code = new StringBuilder();
+    for (String s: syllables) {
+      if (code.length() > 0) code.append(' ');
+      code.append(speller.getLookupCode(s));
+    }
+    String key = code.toString();
+    if (cache.containsKey(key)) return cache.get(key);
+    String hz = null;
+    for (String t: getTables(key)) {
+      Storage.Rows rows = (syllables.size() == 1)
+        ? storage.query(String.format("select hz from %s where py match ? and not glob('* *', py) limit 1", t), new String[]{key})
+        : storage.query(String.format("select hz from %s where py match ? and py = ? limit 1", t), new String[]{String.format("\"^%s\"", key), key});
+      if (rows != null) {
+        hz = rows.getString(0);
+        rows.close();
+        break;
+      }
+    }
+    cache.put(key, hz);
+    return hz;
+  }
+}
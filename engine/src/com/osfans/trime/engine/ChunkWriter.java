@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts chunks of a stream on a thread pool and writes the results in
+ * the order the chunks were read, keeping at most two chunks per thread
+ * in memory.
+ */
+class ChunkWriter {
+  private final Writer out;
+  private final int maxPending;
+  private final ExecutorService executor;
+  private final Queue<Future<String>> pending = new LinkedList<Future<String>>();
+
+  ChunkWriter(Writer out, int threads) {
+    this.out = out;
+    this.maxPending = threads * 2;
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  /** Queues a chunk, first writing the oldest one if too many are pending. */
+  void submit(Callable<String> chunk) throws IOException {
+    if (pending.size() >= maxPending) writeNext();
+    pending.add(executor.submit(chunk));
+  }
+
+  private void writeNext() throws IOException {
+    try {
+      out.write(pending.remove().get());
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Error convert", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error convert", e);
+    }
+  }
+
+  /** Writes all pending chunks and stops the threads. */
+  void finish() throws IOException {
+    try {
+      while (!pending.isEmpty()) writeNext();
+      out.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
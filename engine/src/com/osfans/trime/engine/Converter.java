@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Converts traditional Chinese to simplified Chinese with the OpenCC
+ * table, taking the longest phrase of the table at each position. The
+ * table is small, so it is loaded into memory at the first conversion.
+ */
+public class Converter {
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  private final Storage storage;
+  private Map<String, String> table;
+  private int maxLength;
+  private byte[] maxLengths; //以某字開頭的最長詞長
+
+  /** Counts of a conversion run. */
+  public static class Stats {
+    public long chars, lookups, hits;
+    public long nanos;
+
+    /** Returns the input throughput in MB/s, counting a char as a byte. */
+    public double getMBps() {
+      return nanos == 0 ? 0 : chars / 1e6 / (nanos / 1e9);
+    }
+
+    /** Returns the share of table lookups that found a phrase. */
+    public double getHitRate() {
+      return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    synchronized void add(long chars, long lookups, long hits) {
+      this.chars += chars;
+      this.lookups += lookups;
+      this.hits += hits;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.2f MB in %.2f s, %.2f MB/s, %d lookups, %.1f%% hits",
+        chars / 1e6, nanos / 1e9, getMBps(), lookups, getHitRate() * 100);
+    }
+  }
+
+  public Converter(Storage storage) {
+    this.storage = storage;
+  }
+
+  private synchronized Map<String, String> getTable() {
+    if (table == null) {
+      Map<String, String> m = new HashMap<String, String>();
+      maxLengths = new byte[Character.MAX_VALUE + 1];
+      Storage.Rows rows = storage.query("select t, s from opencc", null);
+      if (rows != null) {
+        do {
+          String t = rows.getString(0);
+          if (t.length() == 0 || t.length() > Byte.MAX_VALUE) continue;
+          m.put(t, rows.getString(1).split(" ")[0]); //多個候選取第一個
+          maxLength = Math.max(maxLength, t.length());
+          maxLengths[t.charAt(0)] = (byte)Math.max(maxLengths[t.charAt(0)], t.length());
+        } while (rows.moveToNext());
+        rows.close();
+      }
+      table = m;
+    }
+    return table;
+  }
+
+  public String toSC(String text) {
+    StringBuilder sb = new StringBuilder(text.length());
+    convert(text, sb, null);
+    return sb.toString();
+  }
+
+  /**
+   * Converts text into {@code sb} by longest match, counting into
+   * {@code stats} if it is not {@code null}.
+   */
+  private void convert(CharSequence text, StringBuilder sb, Stats stats) {
+    Map<String, String> m = getTable();
+    int n = text.length();
+    long lookups = 0, hits = 0;
+    for (int i = 0; i < n;) {
+      int len = Math.min(maxLengths[text.charAt(i)], n - i);
+      String s = null;
+      for (; len > 0; len--) {
+        if (len == 1 && Character.isHighSurrogate(text.charAt(i))) continue; //不拆開代理對
+        lookups++;
+        s = m.get(text.subSequence(i, i + len).toString());
+        if (s != null) break;
+      }
+      if (s != null) {
+        hits++;
+        sb.append(s);
+      } else {
+        len = (i + 1 < n && Character.isHighSurrogate(text.charAt(i))) ? 2 : 1;
+        sb.append(text, i, i + len);
+      }
+      i += len;
+    }
+    if (stats != null) stats.add(n, lookups, hits);
+  }
+
+  /**
+   * Returns the last position in {@code buf[0, n)} that no phrase of the
+   * table spans, so that converting both sides apart gives the same text
+   * as converting them together, or 0 if there is none.
+   */
+  private int getBoundary(char[] buf, int n) {
+    Map<String, String> m = getTable();
+    for (int p = n - maxLength; p > 0; p--) {
+      if (Character.isHighSurrogate(buf[p - 1])) continue;
+      boolean safe = true;
+      for (int i = Math.max(0, p - maxLength + 1); i < p && safe; i++) {
+        for (int j = p + 1; j <= i + maxLength && safe; j++) {
+          if (m.containsKey(new String(buf, i, j - i))) safe = false;
+        }
+      }
+      if (safe) return p;
+    }
+    return 0;
+  }
+
+  /**
+   * Converts a whole document, splitting it into chunks at positions no
+   * phrase spans, which are converted in parallel and written in order.
+   */
+  public Stats convert(Reader in, Writer out, int threads) throws IOException {
+    Stats stats = new Stats();
+    long start = System.nanoTime();
+    getTable();
+    final Stats counts = stats;
+    ChunkWriter writer = new ChunkWriter(out, Math.max(1, threads));
+    try {
+      char[] buf = new char[CHUNK_SIZE];
+      int n = 0;
+      while (true) {
+        int r = in.read(buf, n, buf.length - n);
+        if (r > 0) n += r;
+        boolean eof = (r < 0);
+        if (n < buf.length && !eof) continue;
+        int end = eof ? n : getBoundary(buf, n);
+        if (end == 0) end = Character.isHighSurrogate(buf[n - 1]) ? n - 1 : n; //無安全邊界時整塊轉換
+        final String chunk = new String(buf, 0, end);
+        System.arraycopy(buf, end, buf, 0, n - end);
+        n -= end;
+        if (chunk.length() > 0) {
+          writer.submit(new Callable<String>() {
+            @Override
+            public String call() {
+              StringBuilder sb = new StringBuilder(chunk.length());
+              convert(chunk, sb, counts);
+              return sb.toString();
+            }
+          });
+        }
+        if (eof) break;
+      }
+    } finally {
+      writer.finish();
+    }
+    stats.nanos = System.nanoTime() - start;
+    return stats;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The shared, read-only part of the input engine: compiled schemas and
+ * the dictionaries they look up, serving any number of {@link Session}s
+ * on any threads.
+ * A compiled schema is never changed once published. Looking one up is a
+ * lock-free read, and replacing it only affects sessions that switch to
+ * it afterwards. Queries go through the storage, which should be a
+ * {@link StoragePool} of read connections when sessions run in parallel.
+ * Closing the engine closes its storage if the storage can be closed.
+ */
+public class Engine implements Closeable {
+  private final Storage storage;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /** A compiled schema with its dictionary table and shard routing. */
+  static class Entry {
+    final String id;
+    final Schema schema;
+    final Speller speller;
+    final Translator translator;
+    final String table;
+    final Map<String, String> shards;
+
+    Entry(String id, Schema schema, Speller speller, Translator translator, String table, Map<String, String> shards) {
+      this.id = id;
+      this.schema = schema;
+      this.speller = speller;
+      this.translator = translator;
+      this.table = table;
+      this.shards = shards;
+    }
+
+    List<String> getTables(String match) {
+      return Engine.getTables(table, shards, match);
+    }
+  }
+
+  public Engine(Storage storage) {
+    this.storage = storage;
+  }
+
+  public Storage getStorage() {
+    return storage;
+  }
+
+  @Override
+  public void close() throws IOException {
+    entries.clear();
+    if (storage instanceof Closeable) ((Closeable)storage).close();
+  }
+
+  /**
+   * Compiles a schema and publishes it under an id, replacing any schema
+   * of that id for the sessions that open or switch to it later.
+   */
+  public void putSchema(String id, Schema schema) {
+    Speller speller = new Speller(schema);
+    String table = (String)schema.getValue("translator", "dictionary");
+    entries.put(id, new Entry(id, schema, speller, new Translator(storage, speller), table, loadShards(table)));
+  }
+
+  public void removeSchema(String id) {
+    entries.remove(id);
+  }
+
+  public boolean hasSchema(String id) {
+    return entries.containsKey(id);
+  }
+
+  Entry getEntry(String id) {
+    Entry entry = entries.get(id);
+    if (entry == null) throw new IllegalArgumentException("No schema " + id);
+    return entry;
+  }
+
+  /** Opens a new session composing with a published schema. */
+  public Session openSession(String id) {
+    return new Session(this, getEntry(id));
+  }
+
+  private Map<String, String> loadShards(String table) {
+    if (table == null) return null;
+    Storage.Rows rows = storage.query("select name from sqlite_master where type = 'table' and name = 'shard'", null);
+    if (rows == null) return null;
+    rows.close();
+    rows = storage.query("select prefix, name from shard where dict = ? order by rowid", new String[]{table});
+    if (rows == null) return null;
+    Map<String, String> shards = new HashMap<String, String>();
+    for (String[] row: Translator.readRows(rows)) shards.put(row[0], row[1]);
+    return Collections.unmodifiableMap(shards);
+  }
+
+  /**
+   * Looks up the words of a code with the fuzzy rules chosen by a session,
+   * merging the shards of the dictionary.
+   *
+   * @return the rows of word and code, or an empty list.
+   */
+  List<String[]> getWord(Entry entry, String code, boolean[] fuzzy, int limit) {
+    if (entry.table == null || code.length() == 0) return Collections.emptyList();
+    String s = entry.speller.getMatch(code, fuzzy);
+    List<String> tables = entry.getTables(s);
+    if (tables.size() == 1) return Translator.readRows(entry.translator.getWord(s, tables.get(0), "hz,py", false, false, limit));
+    List<Storage.Rows> results = new ArrayList<Storage.Rows>(tables.size());
+    for (String t: tables) results.add(entry.translator.getWord(s, t, "hz,py", false, false, limit));
+    return MergedRows.mergeAll(results);
+  }
+
+  /**
+   * Returns the tables of a dictionary that may hold the terms of a match
+   * expression, routing by the first letter of each term. Returns all
+   * shards if {@code match} is {@code null}.
+   *
+   * @param shards the shard tables by first letter, or {@code null} if
+   *     the dictionary is not sharded.
+   */
+  public static List<String> getTables(String table, Map<String, String> shards, String match) {
+    if (shards == null) return Collections.singletonList(table);
+    if (match == null) return new ArrayList<String>(shards.values());
+    List<String> tables = new ArrayList<String>();
+    for (String term: match.split(" OR ")) {
+      if (term.length() == 0) continue;
+      String t = shards.get(term.substring(0, 1));
+      if (t != null && !tables.contains(t)) tables.add(t);
+    }
+    return tables;
+  }
+}
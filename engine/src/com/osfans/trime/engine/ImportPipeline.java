@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Imports the rows of a .dict.yaml body in three stages joined by bounded
+ * queues: a reader thread cuts the lines into batches, a pool of workers
+ * parses and normalizes them into rows, and the calling thread hands the
+ * rows to a {@link Sink} in file order, so a single writer owns the
+ * database transaction and the ranking by row order is kept.
+ * After each batch the sink learns the byte offset of the input reached,
+ * where an interrupted import can resume.
+ */
+public class ImportPipeline {
+  private static final int BATCH_LINES = 1024;
+  private static final long PROGRESS_INTERVAL = 500;
+  private static final String COMMENT = "#";
+  private static final String HEADER_END = "...";
+
+  private static final Future<Batch> END = new FutureTask<Batch>(new Callable<Batch>() {
+    @Override
+    public Batch call() {
+      return null;
+    }
+  });
+
+  /** The parsed rows of a batch of lines and the offset after its last line. */
+  private static class Batch {
+    final List<String[]> rows;
+    final long offset;
+
+    Batch(List<String[]> rows, long offset) {
+      this.rows = rows;
+      this.offset = offset;
+    }
+  }
+
+  /** Receives the rows on the calling thread. */
+  public interface Sink {
+    /** Writes a row of word and code. */
+    void write(String word, String code);
+
+    /**
+     * Called after the rows of each batch, with the bytes of input
+     * consumed through its last line.
+     */
+    void onBatch(long offset);
+
+    /** Reports the rows written so far, at most twice a second. */
+    void onProgress(long rows);
+  }
+
+  private final int threads;
+
+  public ImportPipeline(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Reads the yaml header of a .dict.yaml, leaving the reader at the first
+   * line of rows.
+   *
+   * @return the header lines, each ended by a newline.
+   */
+  public static String readHeader(LineReader lr) throws IOException {
+    StringBuilder header = new StringBuilder();
+    String line;
+    while ((line = lr.readLine()) != null && !line.contentEquals(HEADER_END)) {
+      header.append(line);
+      header.append('\n');
+    }
+    return header.toString();
+  }
+
+  /**
+   * Parses {@code word<TAB>code[<TAB>...]} lines, skipping comments and
+   * rows without a code, and trims the code.
+   */
+  static List<String[]> parse(List<String> lines) {
+    List<String[]> rows = new ArrayList<String[]>(lines.size());
+    for (String line: lines) {
+      if (line.startsWith(COMMENT)) continue;
+      int i = line.indexOf('\t');
+      if (i < 0) continue;
+      int j = line.indexOf('\t', i + 1);
+      String code = (j < 0 ? line.substring(i + 1) : line.substring(i + 1, j)).trim();
+      if (code.length() == 0) continue;
+      rows.add(new String[]{line.substring(0, i), code});
+    }
+    return rows;
+  }
+
+  /**
+   * Imports the remaining lines of a reader.
+   *
+   * @return the number of rows written.
+   */
+  public long run(final LineReader lr, Sink sink) throws IOException {
+    final BlockingQueue<Future<Batch>> queue = new ArrayBlockingQueue<Future<Batch>>(threads * 2);
+    final ExecutorService parsers = Executors.newFixedThreadPool(threads);
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    Future<Void> reading = reader.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        try {
+          List<String> lines = new ArrayList<String>(BATCH_LINES);
+          String line;
+          while ((line = lr.readLine()) != null) {
+            lines.add(line);
+            if (lines.size() == BATCH_LINES) {
+              queue.put(submit(parsers, lines, lr.getOffset()));
+              lines = new ArrayList<String>(BATCH_LINES);
+            }
+          }
+          if (!lines.isEmpty()) queue.put(submit(parsers, lines, lr.getOffset()));
+        } finally {
+          queue.put(END);
+        }
+        return null;
+      }
+    });
+
+    long rows = 0;
+    long last = System.currentTimeMillis();
+    try {
+      while (true) {
+        Future<Batch> f = queue.take();
+        if (f == END) break;
+        Batch batch = f.get();
+        for (String[] row: batch.rows) {
+          sink.write(row[0], row[1]);
+          rows++;
+        }
+        sink.onBatch(batch.offset);
+        long now = System.currentTimeMillis();
+        if (now - last >= PROGRESS_INTERVAL) { //限制通知頻率
+          sink.onProgress(rows);
+          last = now;
+        }
+      }
+      reading.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Error import", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      throw new RuntimeException("Error import", e.getCause());
+    } finally {
+      reader.shutdownNow();
+      parsers.shutdownNow();
+      queue.clear(); //讓讀取線程能放入結束標記
+    }
+    sink.onProgress(rows);
+    return rows;
+  }
+
+  private static Future<Batch> submit(ExecutorService parsers, final List<String> lines, final long offset) {
+    return parsers.submit(new Callable<Batch>() {
+      @Override
+      public Batch call() {
+        return new Batch(parse(lines), offset);
+      }
+    });
+  }
+}
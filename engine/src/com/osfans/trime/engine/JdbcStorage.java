@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Storage over a JDBC connection, for running the engine on a desktop JVM
+ * with a SQLite driver that has FTS4. A connection serves one thread at a
+ * time; threads share connections through a {@link StoragePool}.
+ * Closing the storage closes its connection.
+ */
+public class JdbcStorage implements Storage, Closeable {
+  private final Connection connection;
+
+  public JdbcStorage(Connection connection) {
+    this.connection = connection;
+  }
+
+  @Override
+  public Rows query(String sql, String[] args) {
+    try {
+      PreparedStatement ps = connection.prepareStatement(sql);
+      boolean found = false;
+      try {
+        if (args != null) {
+          for (int i = 0; i < args.length; i++) ps.setString(i + 1, args[i]);
+        }
+        ResultSet rs = ps.executeQuery();
+        found = rs.next();
+        return found ? new ResultRows(ps, rs) : null;
+      } finally {
+        if (!found) ps.close();
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException("Error query " + sql, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      throw new RuntimeException("Error close connection", e);
+    }
+  }
+
+  private static class ResultRows implements Rows {
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    private final int columns;
+
+    ResultRows(PreparedStatement ps, ResultSet rs) throws SQLException {
+      this.ps = ps;
+      this.rs = rs;
+      columns = rs.getMetaData().getColumnCount();
+    }
+
+    @Override
+    public int getColumnCount() {
+      return columns;
+    }
+
+    @Override
+    public String getString(int column) {
+      try {
+        return rs.getString(column + 1);
+      } catch (SQLException e) {
+        throw new RuntimeException("Error read column", e);
+      }
+    }
+
+    @Override
+    public boolean moveToNext() {
+      try {
+        return rs.next();
+      } catch (SQLException e) {
+        throw new RuntimeException("Error read row", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        ps.close();
+      } catch (SQLException e) {
+        throw new RuntimeException("Error close query", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads UTF-8 lines from a stream and counts the bytes consumed, so that
+ * an import can record how far it got and later skip straight there.
+ * Lines end with {@code \n} or {@code \r\n}.
+ */
+public class LineReader implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private byte[] buf = new byte[BUFFER_SIZE];
+  private int pos, limit;
+  private long offset;
+
+  public LineReader(InputStream in) {
+    this.in = in;
+  }
+
+  /** Returns the bytes consumed through the last line read or skipped. */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Returns the next line without its line break, or {@code null} at the
+   * end of the stream.
+   */
+  public String readLine() throws IOException {
+    int scan = pos;
+    while (true) {
+      for (int i = scan; i < limit; i++) {
+        if (buf[i] == '\n') return take(i, i + 1);
+      }
+      scan = limit - pos;
+      if (!fill()) return (pos == limit) ? null : take(limit, limit);
+      scan += pos;
+    }
+  }
+
+  private String take(int end, int next) throws IOException {
+    int len = end - pos;
+    if (len > 0 && buf[end - 1] == '\r') len--;
+    String s = new String(buf, pos, len, "UTF-8");
+    offset += next - pos;
+    pos = next;
+    return s;
+  }
+
+  /** Reads more bytes after the buffered ones, growing the buffer for a long line. */
+  private boolean fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    } else if (limit == buf.length) {
+      byte[] b = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, b, 0, limit);
+      buf = b;
+    }
+    int n = in.read(buf, limit, buf.length - limit);
+    if (n <= 0) return false;
+    limit += n;
+    return true;
+  }
+
+  /** Skips {@code n} bytes, which should end at a line break. */
+  public void skip(long n) throws IOException {
+    int buffered = limit - pos;
+    if (n <= buffered) {
+      pos += n;
+      offset += n;
+      return;
+    }
+    n -= buffered;
+    offset += buffered;
+    pos = limit = 0;
+    while (n > 0) {
+      long s = in.skip(n);
+      if (s <= 0) {
+        if (in.read() < 0) throw new EOFException("Error skip to " + (offset + n));
+        s = 1;
+      }
+      n -= s;
+      offset += s;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the ranked rows of several queries by rank as they are visited,
+ * earlier queries first on ties, and drops words already seen. The rank of
+ * a row is its position in its query. Rows given up front, such as learned
+ * words, come before all of them.
+ * Only the head row of each query is held, so visiting the first page
+ * reads no more than that page from each query.
+ */
+public class MergedRows implements Storage.Rows {
+  private final List<String[]> first;
+  private final Storage.Rows[] sources;
+  private final int columns;
+  private final HashSet<String> words = new HashSet<String>();
+  private final PriorityQueue<int[]> heads; //{名次, 來源}
+  private int next;
+  private String[] row;
+
+  private MergedRows(List<String[]> first, List<Storage.Rows> sources, int columns) {
+    this.first = first;
+    this.sources = sources.toArray(new Storage.Rows[sources.size()]);
+    this.columns = columns;
+    heads = new PriorityQueue<int[]>(this.sources.length + 1, new Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        return (a[0] != b[0]) ? (a[0] < b[0] ? -1 : 1) : (a[1] - b[1]);
+      }
+    });
+    for (int i = 0; i < this.sources.length; i++) {
+      if (this.sources[i] != null) heads.add(new int[] {0, i});
+    }
+  }
+
+  /**
+   * Merges rows of queries, taking over closing them.
+   *
+   * @param first the rows to come first, or {@code null}.
+   * @param sources the rows of each query, on the first row, or
+   *     {@code null} for a query without rows.
+   * @return the merged rows, on the first one, or {@code null} if none.
+   */
+  public static Storage.Rows merge(List<String[]> first, List<Storage.Rows> sources) {
+    if (first == null) first = Collections.emptyList();
+    int columns = first.isEmpty() ? 0 : first.get(0).length;
+    for (Storage.Rows rows: sources) {
+      if (columns == 0 && rows != null) columns = rows.getColumnCount();
+    }
+    MergedRows merged = new MergedRows(first, sources, columns);
+    if (merged.moveToNext()) return merged;
+    merged.close();
+    return null;
+  }
+
+  /** Reads the merged rows into a list and closes them. */
+  public static List<String[]> mergeAll(List<Storage.Rows> sources) {
+    return Translator.readRows(merge(null, sources));
+  }
+
+  @Override
+  public int getColumnCount() {
+    return columns;
+  }
+
+  @Override
+  public String getString(int column) {
+    return row[column];
+  }
+
+  @Override
+  public boolean moveToNext() {
+    row = read();
+    return row != null;
+  }
+
+  private String[] read() {
+    while (next < first.size()) {
+      String[] r = first.get(next++);
+      if (words.add(r[0])) return r;
+    }
+    while (!heads.isEmpty()) {
+      int[] head = heads.poll();
+      Storage.Rows rows = sources[head[1]];
+      String[] r = new String[columns];
+      for (int i = 0; i < columns; i++) r[i] = rows.getString(i);
+      if (rows.moveToNext()) {
+        head[0]++;
+        heads.add(head);
+      } else {
+        rows.close();
+        sources[head[1]] = null;
+      }
+      if (words.add(r[0])) return r;
+    }
+    return null;
+  }
+
+  @Override
+  public void close() {
+    heads.clear();
+    for (int i = 0; i < sources.length; i++) {
+      if (sources[i] != null) sources[i].close();
+      sources[i] = null;
+    }
+  }
+}
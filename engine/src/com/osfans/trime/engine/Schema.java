@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings of an input schema, falling back to the default settings.
+ */
+public class Schema {
+  private final Map<String,Object> schema, defaults;
+
+  public Schema(Map<String,Object> schema, Map<String,Object> defaults) {
+    this.schema = schema;
+    this.defaults = defaults;
+  }
+
+  public Object getValue(String k1) {
+    if (schema.containsKey(k1)) return schema.get(k1);
+    if (defaults != null && defaults.containsKey(k1)) return defaults.get(k1);
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public Object getValue(String k1, String k2) {
+    Map<String, Object> m;
+    if (schema.containsKey(k1)) {
+      m = (Map<String, Object>)schema.get(k1);
+      if (m != null && m.containsKey(k2)) return m.get(k2);
+    }
+    if (defaults != null && defaults.containsKey(k1)) {
+      m = (Map<String, Object>)defaults.get(k1);
+      if (m != null && m.containsKey(k2)) return m.get(k2);
+    }
+    return null;
+  }
+
+  public Object getDefaultValue(String k1, String k2, Object o) {
+    Object ret = getValue(k1, k2);
+    return (ret != null) ? ret : o;
+  }
+
+  /**
+   * Parses a list of rules such as {@code xform/a/b/} or {@code derive a b}
+   * into their parts.
+   *
+   * @return the rules, or {@code null} if there is none.
+   */
+  public String[][] getRule(String k1, String k2) {
+    @SuppressWarnings("unchecked")
+    List<String> rule = (List<String>)getValue(k1, k2);
+    if (rule!=null && rule.size() > 0) {
+      int n = rule.size();
+      String[][] rules = new String[n][4];
+      for(int i = 0; i < n; i++) {
+        String s = rule.get(i);
+        rules[i] = s.split(s.contains(" ") ? " " : "(?<!\\\\)/", 4);
+        for(int j = 0; j < rules[i].length; j++)
+          rules[i][j] = rules[i][j].replace("\\/","/");
+      }
+      return rules;
+    }
+    return null;
+  }
+}
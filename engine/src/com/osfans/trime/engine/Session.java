@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The composition of one input session: the composing code, its
+ * candidates, the highlighted candidate and the fuzzy rules chosen by the
+ * user. A session is cheap to open and must be used by one thread at a
+ * time; everything it reads is shared through its {@link Engine}.
+ */
+public class Session {
+  private final Engine engine;
+  private Engine.Entry entry;
+  private boolean[] fuzzy;
+  private final StringBuilder composingText = new StringBuilder();
+  private List<String[]> candidates = Collections.emptyList();
+  private int cursor;
+  private int limit;
+
+  Session(Engine engine, Engine.Entry entry) {
+    this.engine = engine;
+    setEntry(entry);
+  }
+
+  private void setEntry(Engine.Entry entry) {
+    this.entry = entry;
+    boolean[] b = entry.speller.getFuzzyRulesPref();
+    fuzzy = (b == null) ? null : new boolean[b.length];
+    clear();
+  }
+
+  /** Switches to another published schema, dropping the composition. */
+  public void setSchema(String id) {
+    setEntry(engine.getEntry(id));
+  }
+
+  public String getSchemaId() {
+    return entry.id;
+  }
+
+  public Schema getSchema() {
+    return entry.schema;
+  }
+
+  /** Returns the names of optional fuzzy rules, or {@code null} if none. */
+  public String[] getNamedFuzzyRules() {
+    return entry.speller.getNamedFuzzyRules();
+  }
+
+  public void setFuzzyRule(int which, boolean isChecked) {
+    if (fuzzy == null || which < 0 || which >= fuzzy.length) return;
+    fuzzy[which] = isChecked;
+    if (composingText.length() > 0) updateCandidates();
+  }
+
+  /** Sets the maximum number of candidates, or 0 for the default. */
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  public String getComposingText() {
+    return composingText.toString();
+  }
+
+  public boolean hasComposingText() {
+    return composingText.length() > 0;
+  }
+
+  /** Returns the candidates as rows of word and code. */
+  public List<String[]> getCandidates() {
+    return candidates;
+  }
+
+  public int getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(int cursor) {
+    if (cursor >= 0 && cursor < candidates.size()) this.cursor = cursor;
+  }
+
+  /**
+   * Handles typed text as the keyboard does: keys of the alphabet and
+   * delimiters compose, anything else commits the highlighted candidate
+   * and then itself.
+   *
+   * @return the text to commit, empty if there is none.
+   */
+  public String onText(CharSequence text) {
+    Speller speller = entry.speller;
+    StringBuilder commit = new StringBuilder();
+    if (hasComposingText() && speller.isDelimiter(text)) {
+      if (!composingText.toString().endsWith(speller.getDelimiter())) {
+        composingText.append(speller.getDelimiter()); //手動切分音节
+        updateCandidates();
+      }
+    } else if (text.length() > 0 && speller.isAlphabet(text, hasComposingText())) {
+      String s = speller.correctSpell(composingText.toString(), text);
+      if (s == null && !speller.hasDelimiter()) {
+        commit.append(pick(cursor)); //自動上屏
+        s = speller.correctSpell("", text);
+      }
+      if (s != null) {
+        composingText.setLength(0);
+        composingText.append(s);
+        updateCandidates();
+      }
+    } else {
+      commit.append(pick(cursor));
+      commit.append(text);
+    }
+    return commit.toString();
+  }
+
+  /**
+   * Deletes the last key of the composition.
+   *
+   * @return {@code false} if there was nothing to delete.
+   */
+  public boolean backspace() {
+    if (!hasComposingText()) return false;
+    composingText.deleteCharAt(composingText.length() - 1);
+    updateCandidates();
+    return true;
+  }
+
+  /**
+   * Picks a candidate, ending the composition.
+   *
+   * @return the word, or the composing text if there is no such candidate.
+   */
+  public String pick(int index) {
+    String s = (index >= 0 && index < candidates.size()) ? candidates.get(index)[0] : composingText.toString();
+    clear();
+    return s;
+  }
+
+  public void clear() {
+    composingText.setLength(0);
+    candidates = Collections.emptyList();
+    cursor = 0;
+  }
+
+  private void updateCandidates() {
+    candidates = engine.getWord(entry, composingText.toString(), fuzzy, limit);
+    cursor = 0;
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Spells typed keys into codes and rewrites codes for lookup, following
+ * the speller, spell, lookup and fuzzy rules of a schema.
+ */
+public class Speller {
+  private final String delimiter, alphabet, initials;
+  private final Pattern syllableP, autoSelectSyllableP;
+  private final String[][] spellRule, lookupRule, fuzzyRule;
+  private final String[] namedFuzzyRules;
+  private final boolean[] fuzzyRulesPref;
+
+  public Speller(Schema schema) {
+    delimiter = (String)schema.getValue("speller", "delimiter");
+    alphabet = (String)schema.getValue("speller", "alphabet");
+    initials = (String)schema.getValue("speller", "initials");
+    String a = (String)schema.getValue("trime", "syllable");
+    syllableP = (a!=null) ? Pattern.compile(a) : null;
+    a = (String) schema.getValue("trime", "auto_select_syllable");
+    autoSelectSyllableP = (a!=null) ? Pattern.compile(a) : null;
+    spellRule = schema.getRule("trime", "spell");
+    lookupRule = schema.getRule("trime", "lookup");
+    fuzzyRule = schema.getRule("trime", "fuzzy");
+
+    ArrayList<String> fuzzyList = new ArrayList<String>();
+    if (fuzzyRule != null) {
+      for(String[] i: fuzzyRule) {
+        if(i[0].length() > 0) {
+          if (!fuzzyList.contains(i[0])) fuzzyList.add(i[0]);
+        }
+      }
+    }
+    if (fuzzyList.size()>0) {
+      fuzzyRulesPref =  new boolean[fuzzyList.size()];
+      namedFuzzyRules = new String[fuzzyList.size()];
+      fuzzyList.toArray(namedFuzzyRules);
+    } else {
+      namedFuzzyRules = null;
+      fuzzyRulesPref = null;
+    }
+  }
+
+  public String getAlphabet() {
+    return alphabet;
+  }
+
+  public boolean isAlphabet(CharSequence cs, boolean hasComposingText) {
+    if (!hasComposingText && initials != null && cs.length() == 1 && !initials.contains(cs)) return false;
+    String[] ss = cs.toString().split("");
+    for(String s: ss) if(!alphabet.contains(s)) return false;
+    return true;
+  }
+
+  private boolean isSyllable(String s) {
+    if (syllableP == null) return true;
+    if (!hasDelimiter()) return syllableP.matcher(s).matches();
+    String[] ss = s.split(getDelimiter());
+    for (String i: ss) if(!syllableP.matcher(i).matches()) return false;
+    return true;
+  }
+
+  public boolean isAutoSelect(CharSequence s) {
+    return (autoSelectSyllableP != null) && autoSelectSyllableP.matcher(s).matches();
+  }
+
+  /**
+   * Appends typed text to a code.
+   *
+   * @return the spelled code, or {@code null} if it is not a valid code.
+   */
+  public String correctSpell(String r, CharSequence text) {
+    String s = translate(r + text, spellRule);
+    if (isSyllable(s)) return s;
+    if (hasDelimiter()) {
+      s = translate(r + getDelimiter() + text, spellRule);
+      if (isSyllable(s)) return s;
+    }
+    return null;
+  }
+
+  /**
+   * Rewrites a code by the lookup rules.
+   */
+  public String getLookupCode(String s) {
+    return translate(s, lookupRule);
+  }
+
+  /**
+   * Rewrites a code by the lookup rules and expands it by the enabled
+   * fuzzy rules into an FTS match expression of alternatives.
+   */
+  public String getMatch(String s) {
+    return getMatch(s, fuzzyRulesPref);
+  }
+
+  /**
+   * Like {@link #getMatch(String)}, with the named fuzzy rules enabled by
+   * {@code fuzzy} instead of this speller's own settings, so that
+   * sessions sharing a speller can choose their own.
+   */
+  public String getMatch(String s, boolean[] fuzzy) {
+    s = translate(s, lookupRule);
+    if (fuzzyRule != null) s = fuzzyText(s, fuzzy);
+    return s;
+  }
+
+  private String fuzzyText(String s, boolean[] fuzzy) {
+    if (fuzzyRule == null) return s;
+    int n = fuzzyRule.length;
+    if (n == 0) return s;
+    StringBuilder r = new StringBuilder(s);
+    ArrayList<Integer> b = new ArrayList<Integer>();
+    ArrayList<Integer> bn = new ArrayList<Integer>();
+    ArrayList<String> fuzzyList =  new ArrayList<String>();
+    if (fuzzy != null && namedFuzzyRules != null) {
+      for (int i = 0; i < fuzzy.length && i < namedFuzzyRules.length; i++) {
+        if (fuzzy[i]) fuzzyList.add(namedFuzzyRules[i]);
+      }
+    }
+    for (int j=0; j<n; j++){
+      String[] rule = fuzzyRule[j];
+      if (rule[0].length() == 0 || fuzzyList.contains(rule[0])) {
+        Matcher m = Pattern.compile(rule[1]).matcher(s);
+        while(m.find()) {
+          b.add(j);
+          bn.add(m.start());
+        }
+      }
+    }
+    int cnt = b.size();
+    if (cnt == 0) return s;
+    String p = s;
+    for (int i = 1;  i < (1 << cnt); i++) {
+      p = s;
+      for (int j = 0; j < cnt; j++) {
+        int bj = b.get(j);
+        int bnj = bn.get(j);
+        String[] rule = fuzzyRule[bj];
+        if ((i & (1 << j)) != 0) {
+          StringBuffer sb = new StringBuffer(p.length());
+          Matcher m = Pattern.compile(rule[1]).matcher(p);
+          if (m.find(bnj)) m.appendReplacement(sb, rule[2]);
+          m.appendTail(sb);
+          m.reset();
+          p = sb.toString();
+        }
+      }
+      r.append(" OR ");
+      r.append(p);
+    }
+    return r.toString();
+  }
+
+  public static String translate(String s, String[][] rules) {
+    if (rules == null) return s;
+    for (String[] rule:  rules) {
+      if (rule[0].contentEquals("xlit")) {
+        String[] rulea = rule[1].split(rule[1].contains("|") ? "\\|" : "");
+        String[] ruleb = rule[2].split(rule[2].contains("|") ? "\\|" : "");
+        int n = rulea.length;
+        if (n == ruleb.length) {
+          for (int i = 0; i < n; i++) if (rulea[i].length() > 0) s = s.replace(rulea[i], ruleb[i]);
+        }
+      } else s = s.replaceAll(rule[1],rule[2]);
+    }
+    return s;
+  }
+
+  /** Returns the names of optional fuzzy rules, or {@code null} if none. */
+  public String[] getNamedFuzzyRules() {
+    return namedFuzzyRules;
+  }
+
+  /** Returns whether each named fuzzy rule is enabled; changes take effect at once. */
+  public boolean[] getFuzzyRulesPref() {
+    return fuzzyRulesPref;
+  }
+
+  public boolean hasDelimiter() {
+      return (delimiter != null) && delimiter.length() > 0;
+  }
+
+  public boolean isDelimiter(CharSequence s) {
+      return hasDelimiter() && s.length() > 0 && s.charAt(0) != ' ' && delimiter.contains(s);
+  }
+
+  public String getDelimiter() {
+    return hasDelimiter() ? delimiter.substring(0, 1) : "";
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+/**
+ * Read access to the dictionary database, so that the engine runs on top
+ * of Android SQLite as well as JDBC.
+ */
+public interface Storage {
+  /**
+   * Runs a query. The rows are read from the database as they are
+   * visited, and must be closed.
+   *
+   * @return the rows, on the first one, or {@code null} if there is no row.
+   */
+  Rows query(String sql, String[] args);
+
+  /** The rows of a query, visited forward. */
+  interface Rows {
+    int getColumnCount();
+
+    String getString(int column);
+
+    boolean moveToNext();
+
+    void close();
+  }
+}
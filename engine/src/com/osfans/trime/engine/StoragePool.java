@@ -0,0 +1,150 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares a bounded number of storages, such as read connections to one
+ * database, among threads. A query borrows an idle storage, opens a new
+ * one while the pool is under its bound, or else waits for one to be
+ * returned, so no two threads ever use the same connection. A storage is
+ * lent until the rows of its query are closed.
+ * Closing the pool closes the idle storages that are {@link Closeable},
+ * and the lent ones as they come back.
+ */
+public class StoragePool implements Storage, Closeable {
+  /** Opens a storage for the pool. */
+  public interface Factory {
+    Storage open();
+  }
+
+  private final Factory factory;
+  private final int maxSize;
+  private final BlockingQueue<Storage> idle;
+  private final AtomicInteger size = new AtomicInteger();
+  private boolean closed;
+
+  public StoragePool(Factory factory, int maxSize) {
+    this.factory = factory;
+    this.maxSize = Math.max(1, maxSize);
+    idle = new ArrayBlockingQueue<Storage>(this.maxSize);
+  }
+
+  /** Returns the number of storages opened so far. */
+  public int getSize() {
+    return size.get();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  private Storage acquire() {
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("Storage pool closed");
+    }
+    Storage storage = idle.poll();
+    if (storage != null) return storage;
+    for (int n = size.get(); n < maxSize; n = size.get()) {
+      if (!size.compareAndSet(n, n + 1)) continue;
+      try {
+        return factory.open();
+      } catch (RuntimeException e) {
+        size.decrementAndGet();
+        throw e;
+      }
+    }
+    try {
+      return idle.take(); //已達上限時等待歸還
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Error wait for storage", e);
+    }
+  }
+
+  @Override
+  public Rows query(String sql, String[] args) {
+    final Storage storage = acquire();
+    final Rows rows;
+    try {
+      rows = storage.query(sql, args);
+    } catch (RuntimeException e) {
+      release(storage);
+      throw e;
+    }
+    if (rows == null) {
+      release(storage);
+      return null;
+    }
+    return new Rows() {
+      private boolean closed;
+
+      @Override
+      public int getColumnCount() {
+        return rows.getColumnCount();
+      }
+
+      @Override
+      public String getString(int column) {
+        return rows.getString(column);
+      }
+
+      @Override
+      public boolean moveToNext() {
+        return rows.moveToNext();
+      }
+
+      @Override
+      public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+          rows.close();
+        } finally {
+          release(storage); //關閉結果後歸還
+        }
+      }
+    };
+  }
+
+  private synchronized void release(Storage storage) {
+    if (closed) closeStorage(storage);
+    else idle.offer(storage);
+  }
+
+  private void closeStorage(Storage storage) {
+    size.decrementAndGet();
+    if (!(storage instanceof Closeable)) return;
+    try {
+      ((Closeable)storage).close();
+    } catch (IOException e) {
+      throw new RuntimeException("Error close storage", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    Storage storage;
+    while ((storage = idle.poll()) != null) closeStorage(storage);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds and runs the FTS queries that look up words and phrases of a
+ * match expression in one dictionary table.
+ */
+public class Translator {
+  private final Storage storage;
+  private final Speller speller;
+
+  public Translator(Storage storage, Speller speller) {
+    this.storage = storage;
+    this.speller = speller;
+  }
+
+  /**
+   * Copies and closes rows, for callers that merge or keep them.
+   *
+   * @return the rows as strings, or an empty list if {@code rows} is {@code null}.
+   */
+  public static List<String[]> readRows(Storage.Rows rows) {
+    List<String[]> list = new ArrayList<String[]>();
+    if (rows == null) return list;
+    int n = rows.getColumnCount();
+    do {
+      String[] row = new String[n];
+      for (int i = 0; i < n; i++) row[i] = rows.getString(i);
+      list.add(row);
+    } while (rows.moveToNext());
+    rows.close();
+    return list;
+  }
+
+  private static String getLimit(int limit, int max) {
+    if (limit <= 0 || limit > max) limit = max;
+    return (limit == Integer.MAX_VALUE) ? "" : String.format(" limit %d", limit);
+  }
+
+  /**
+   * Looks up the words of a match expression from {@link Speller#getMatch},
+   * exact codes first, then codes starting with it.
+   *
+   * @param columns the columns to return, {@code hz} or {@code hz,py}.
+   * @param single only returns single characters.
+   * @param fullPy does not complete short codes.
+   * @param limit the maximum number of rows, or 0 for the default.
+   * @return the rows, to be closed, or {@code null} if none.
+   */
+  public Storage.Rows getWord(String s, String table, String columns, boolean single, boolean fullPy, int limit) {
+    boolean fullPyOn = fullPy && s.length() < 3;
+    if (speller.hasDelimiter() && s.contains(speller.getDelimiter())) {
+      return getPhrase(s.replace(speller.getDelimiter(), "'"), table, columns, fullPy, limit);
+    }
+
+    String sql = String.format("select %s from %s where py match ? and not glob('* *', py) %s", columns, table,
+      single ? " and length(hz) == 1" : "");
+    Storage.Rows rows = storage.query(sql + getLimit(limit, Integer.MAX_VALUE), new String[]{s});
+    if (rows == null && !fullPyOn) {
+      s = s.replace(" OR", "* OR") + "*";
+      rows = storage.query(sql + getLimit(limit, 100), new String[]{s});
+    }
+    return rows;
+  }
+
+  private Storage.Rows getPhrase(String code, String table, String columns, boolean fullPy, int limit) {
+    boolean fullPyOn = fullPy && code.length() < 6;
+    String sql = String.format("select %s from %s where py match ?%s", columns, table, getLimit(limit, 100));
+    String s = String.format("\"^%s\"",code.replace(" OR ", "\" OR \"^").replace("'", " "));
+    Storage.Rows rows = storage.query(sql, new String[]{s});
+    if (rows != null || fullPyOn) return rows;
+    s = String.format("\"^%s*\"",code.replace(" OR ", "*\" OR \"^").replace("'", " "));
+    rows = storage.query(sql, new String[]{s});
+    if (rows != null) return rows;
+    s = String.format("\"^%s*\"",code.replace(" OR ", "*\" OR \"^").replace("'", "* "));
+    return storage.query(sql, new String[]{s});
+  }
+}
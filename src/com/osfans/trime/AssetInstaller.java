@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Installs the database shipped in the assets off the main thread.
+ * The asset is copied into a temporary file and renamed over the
+ * database, so a crash never leaves a partial database behind. Its
+ * checksum is recorded, and after an upgrade the database is replaced
+ * only if the new package ships a different one, carrying the user's
+ * tables over into it. Users of the database wait on {@link #await()}
+ * until the installer is done, which fails if the install did; an
+ * unfinished install is retried on the next start.
+ * The asset may be shipped gzipped as {@code <name>.gz}, and is then
+ * inflated straight into the temporary file through fixed buffers.
+ */
+class AssetInstaller {
+  private static final String TAG = "AssetInstaller";
+  private static final String GZ_SUFFIX = ".gz";
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final String PREF_CRC = "asset_db_crc";
+  private static final String PREF_VERSION = "asset_db_version";
+  private static final String PREF_PENDING = "asset_db_pending";
+
+  private static final CountDownLatch ready = new CountDownLatch(1);
+  private static boolean started;
+  private static volatile Exception error;
+
+  /** Hears from the installer thread. */
+  interface Listener {
+    /** Reports the bytes of the asset read so far. */
+    void onProgress(long done, long total);
+
+    /** Called when the install succeeded, if the database was not ready at once. */
+    void onReady();
+  }
+
+  /**
+   * Starts installing an asset as a database, once per process.
+   */
+  static synchronized void start(final Context context, final String asset, final File dbFile, final Listener listener) {
+    if (started) return;
+    started = true;
+    final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+    final int version = getVersion(context);
+    if (dbFile.exists() && preferences.getInt(PREF_VERSION, -1) == version
+        && !preferences.getBoolean(PREF_PENDING, false)) { //同一版本無需檢查
+      ready.countDown();
+      return;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          install(context, asset, dbFile, preferences, version, listener);
+        } catch (Exception e) {
+          Log.e(TAG, "Error install " + asset, e);
+          error = e;
+        } finally {
+          ready.countDown();
+        }
+        if (error == null) listener.onReady();
+      }
+    }, TAG).start();
+  }
+
+  static boolean isReady() {
+    return ready.getCount() == 0 && error == null;
+  }
+
+  /**
+   * Waits until the database is installed, and throws if the install
+   * failed, so that no empty database is created in its place.
+   */
+  static void await() {
+    try {
+      ready.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Error wait for database", e);
+    }
+    if (error != null) throw new RuntimeException("Error install database", error);
+  }
+
+  private static int getVersion(Context context) {
+    try {
+      return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+    } catch (PackageManager.NameNotFoundException e) {
+      return 0;
+    }
+  }
+
+  private static void install(Context context, String asset, File dbFile, SharedPreferences preferences, int version,
+      Listener listener) throws IOException {
+    long start = System.currentTimeMillis();
+    boolean gz = hasAsset(context, asset + GZ_SUFFIX);
+    if (gz) asset += GZ_SUFFIX;
+    long crc = gz ? getGzipChecksum(context.getAssets().open(asset)) : checksum(context.getAssets().open(asset));
+    boolean recorded = preferences.contains(PREF_CRC);
+    boolean pending = preferences.getBoolean(PREF_PENDING, false);
+    boolean install = pending || !dbFile.exists() || (recorded && preferences.getLong(PREF_CRC, 0) != crc);
+    if (install) {
+      preferences.edit().putBoolean(PREF_PENDING, true).commit();
+      dbFile.getParentFile().mkdirs();
+      File tmp = new File(dbFile.getPath() + ".tmp");
+      if (gz) inflate(context, asset, tmp, listener);
+      else copy(context, asset, tmp);
+      if (dbFile.exists()) DeltaBackup.carryOver(dbFile, tmp); //保留用戶數據
+      replace(tmp, dbFile);
+    }
+    SharedPreferences.Editor edit = preferences.edit(); //未記錄時沿用現有數據庫
+    edit.putLong(PREF_CRC, crc);
+    edit.putInt(PREF_VERSION, version);
+    edit.remove(PREF_PENDING);
+    edit.commit();
+    Log.i(TAG, String.format("%s %s in %d ms", install ? "Installed" : "Kept", asset, System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Writes the bundled database to a file, for comparing the user's
+   * database against it.
+   */
+  static void extract(Context context, String asset, File file) throws IOException {
+    if (hasAsset(context, asset + GZ_SUFFIX)) inflate(context, asset + GZ_SUFFIX, file, null);
+    else copy(context, asset, file);
+  }
+
+  /**
+   * Renames a closed database file over another, first deleting the
+   * other's rollback journal and write-ahead log, which must not be
+   * applied to the new file.
+   */
+  static void replace(File tmp, File dbFile) throws IOException {
+    for (String suffix: new String[]{"-journal", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).delete();
+    if (!tmp.renameTo(dbFile)) {
+      tmp.delete();
+      throw new IOException("Error rename " + tmp);
+    }
+  }
+
+  private static boolean hasAsset(Context context, String asset) {
+    try {
+      context.getAssets().open(asset).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the CRC32 of the uncompressed data from the trailer of a gzip
+   * stream, the same checksum as of the uncompressed asset.
+   */
+  private static long getGzipChecksum(InputStream is) throws IOException {
+    try {
+      long skip = is.available() - 8;
+      while (skip > 0) {
+        long n = is.skip(skip);
+        if (n <= 0) throw new IOException("Error skip to gzip trailer");
+        skip -= n;
+      }
+      long crc = 0;
+      for (int i = 0; i < 4; i++) { //小端序
+        int b = is.read();
+        if (b < 0) throw new IOException("Error read gzip trailer");
+        crc |= (long)b << (i * 8);
+      }
+      return crc;
+    } finally {
+      is.close();
+    }
+  }
+
+  /** Returns the CRC32 of a stream, closing it. */
+  private static long checksum(InputStream is) throws IOException {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try {
+      int n;
+      while ((n = is.read(buffer)) > 0) crc.update(buffer, 0, n);
+    } finally {
+      is.close();
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Inflates a gzipped asset into a file and syncs it, reporting the
+   * compressed bytes read. The gzip trailer is verified at the end.
+   */
+  private static void inflate(Context context, String asset, File file, Listener listener) throws IOException {
+    InputStream is = context.getAssets().open(asset);
+    int total = is.available();
+    InputStream in = new GZIPInputStream(is, BUFFER_SIZE);
+    FileOutputStream os = new FileOutputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n, count = 0;
+      while ((n = in.read(buffer)) > 0) {
+        os.write(buffer, 0, n);
+        if ((++count % 8) == 0 && listener != null) listener.onProgress(total - is.available(), total);
+      }
+      if (listener != null) listener.onProgress(total, total);
+      os.getFD().sync();
+    } finally {
+      os.close();
+      in.close();
+    }
+  }
+
+  /**
+   * Copies an asset to a file and syncs it, by channel transfer when the
+   * asset is stored uncompressed, or else through a direct buffer.
+   */
+  private static void copy(Context context, String asset, File file) throws IOException {
+    FileOutputStream os = new FileOutputStream(file);
+    try {
+      FileChannel out = os.getChannel();
+      AssetFileDescriptor fd = null;
+      try {
+        fd = context.getAssets().openFd(asset);
+      } catch (FileNotFoundException e) { //壓縮的資源沒有文件描述符
+      }
+      if (fd != null) {
+        FileInputStream is = fd.createInputStream();
+        try {
+          FileChannel in = is.getChannel();
+          long offset = fd.getStartOffset(), length = fd.getLength();
+          for (long p = 0; p < length;) {
+            long n = in.transferTo(offset + p, length - p, out);
+            if (n <= 0) throw new IOException("Error transfer " + asset);
+            p += n;
+          }
+        } finally {
+          is.close();
+          fd.close();
+        }
+      } else {
+        ReadableByteChannel in = Channels.newChannel(context.getAssets().open(asset));
+        try {
+          ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+          while (in.read(buffer) >= 0 || buffer.position() > 0) {
+            buffer.flip();
+            out.write(buffer);
+            buffer.compact();
+          }
+        } finally {
+          in.close();
+        }
+      }
+      os.getFD().sync();
+    } finally {
+      os.close();
+    }
+  }
+}
@@ -24,6 +24,8 @@ import android.widget.LinearLayout;
 import android.database.Cursor;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Contains all candidates in pages where users could move forward (next page)
@@ -40,7 +42,18 @@ public class CandidatesContainer extends LinearLayout {
   private Cursor cursor;
   private boolean highlightDefault;
   private int currentWordCount;
-  private int currentWordSkip;
+  private int currentPage;
+  private int scannedRows;
+  // Cursor positions of distinct candidates, in order.
+  private final ArrayList<Integer> uniqueRows = new ArrayList<Integer>();
+  // First row of each word, or -1 once its comment is in candidateKeys.
+  private final HashMap<String, Integer> firstRows = new HashMap<String, Integer>();
+  // Word and comment of rows whose word is not unique.
+  private final HashSet<String> candidateKeys = new HashSet<String>();
+  // Comments already formatted by row.
+  private final HashMap<Integer, String> comments = new HashMap<Integer, String>();
+  // Index into uniqueRows where each page starts.
+  private final ArrayList<Integer> pageStarts = new ArrayList<Integer>();
   private Dictionary dialectDictionary;
 
   public CandidatesContainer(Context context, AttributeSet attrs) {
@@ -78,10 +91,17 @@ public class CandidatesContainer extends LinearLayout {
     if (cursor != null) cursor.close();
     cursor = words;
     this.highlightDefault = highlightDefault;
+    this.dialectDictionary = dialectDictionary;
     currentWordCount = 0;
-    currentWordSkip = 0;
+    currentPage = 0;
+    scannedRows = 0;
+    uniqueRows.clear();
+    pageStarts.clear();
+    pageStarts.add(0);
+    firstRows.clear();
+    candidateKeys.clear();
+    comments.clear();
     movePage(0);
-    this.dialectDictionary = dialectDictionary;
   }
 
   public boolean pickHighlighted(int index) {
@@ -90,13 +110,53 @@ public class CandidatesContainer extends LinearLayout {
   }
  
 	private boolean isFirst() {
-		return (cursor != null) && cursor.isFirst();
+		return currentPage == 0;
 	}
 
 	private boolean isLast() {
-		return (cursor != null) && (cursor.getPosition() + currentWordSkip + currentWordCount >= cursor.getCount());
+		return !hasUniqueRow(pageStarts.get(currentPage) + currentWordCount);
 	}
 
+  /** Returns the comment of the row at {@code position}, moving the cursor there. */
+  private String getComment(int position) {
+    cursor.moveToPosition(position);
+    if (cursor.getColumnCount() <= 1) return "";
+    String comment = comments.get(position);
+    if (comment == null) comment = dialectDictionary.comment(cursor.getString(1));
+    return comment;
+  }
+
+  /** Formats and keeps the comment of a row, for telling apart rows of one word. */
+  private String getCandidateKey(String word, int position) {
+    String comment = getComment(position);
+    comments.put(position, comment);
+    return word + "\t" + comment;
+  }
+
+  /**
+   * Scans the cursor until the {@code i}-th distinct candidate is found.
+   * Candidates are told apart by the word and its comment, but comments
+   * are only formatted for words seen more than once.
+   */
+  private boolean hasUniqueRow(int i) {
+    while (uniqueRows.size() <= i && cursor.moveToPosition(scannedRows)) {
+      String word = cursor.getString(0);
+      Integer first = firstRows.get(word);
+      if (first == null) {
+        firstRows.put(word, scannedRows);
+        uniqueRows.add(scannedRows);
+      } else if (cursor.getColumnCount() > 1) { //同一個詞，再比較註釋
+        if (first >= 0) {
+          candidateKeys.add(getCandidateKey(word, first));
+          firstRows.put(word, -1);
+        }
+        if (candidateKeys.add(getCandidateKey(word, scannedRows))) uniqueRows.add(scannedRows);
+      }
+      scannedRows++;
+    }
+    return uniqueRows.size() > i;
+  }
+
   private void movePage(int direction) {
     if (cursor == null || cursor.getCount() == 0) {
       candidateView.setCandidates(null);
@@ -113,40 +173,27 @@ public class CandidatesContainer extends LinearLayout {
   private String[] getCandidates(int direction) {
     if ((direction > 0 && isLast()) || (direction < 0 && isFirst()) ) {
             currentWordCount = 0;
-            currentWordSkip = 0;
             return null;
     }
-    
-    int p = 0;
-    if (direction > 0 && currentWordCount + currentWordSkip> 0)  {
-        cursor.move(currentWordCount + currentWordSkip);
-        p = cursor.getPosition();
-    } else if (direction < 0) cursor.move(-1);
-    
+    if (direction > 0) currentPage++;
+    else if (direction < 0) currentPage--;
+
     float n = 0;
     ArrayList<String> candidates = new ArrayList<String>();
     int max_len = candidateView.getCandMaxLen();
     int max_num = candidateView.getCandNum();
-    currentWordSkip = 0;
-    do {
+    int i = pageStarts.get(currentPage);
+    while (hasUniqueRow(i)) {
+        int position = uniqueRows.get(i);
+        cursor.moveToPosition(position);
         String word = cursor.getString(0);
-        String py = cursor.getColumnCount() > 1 ? dialectDictionary.comment(cursor.getString(1)) : "";
-        String s = String.format("%s\t%s", word, py);
-        if (candidates.contains(s)) { //單屏去重
-             currentWordSkip++;
-             continue;
-        }
         n += candidateView.len(word);
-        if (n > max_len && candidates.size() > 0) {
-            if(direction < 0) cursor.move(1);
-            break;
-        }
-        if(direction < 0) candidates.add(0, s);
-        else candidates.add(s);
+        if (n > max_len && candidates.size() > 0) break;
+        candidates.add(String.format("%s\t%s", word, getComment(position)));
+        i++;
         if (n >= max_len || candidates.size() >= max_num) break;
-    } while (cursor.move(direction>=0?1:-1));
-    if(direction >=0) cursor.moveToPosition(p);
-    else if(direction<0 && cursor.isBeforeFirst()) cursor.moveToFirst();
+    }
+    if (currentPage + 1 == pageStarts.size()) pageStarts.add(i);
     currentWordCount = candidates.size(); 
     String[] ret = new String[currentWordCount];
     candidates.toArray(ret);
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory lookup table for shape-code schemas such as cangjie or wubi.
+ * Every code is packed into a long, a few bits per letter, so that exact
+ * lookup is a binary search and prefix completion is a range scan.
+ * Each word keeps its rank, its row order in the tables, so completions
+ * come in the same order as from the SQLite lookup.
+ */
+public class CodeTable {
+  private static final String TAG = "CodeTable";
+
+  private final String alphabet;
+  private final int bits;
+  private final int maxLength;
+  private final long[] codes;
+  private final String[] words;
+  private final int[] ranks;
+
+  private CodeTable(String alphabet, int bits, long[] codes, String[] words, int[] ranks) {
+    this.alphabet = alphabet;
+    this.bits = bits;
+    this.maxLength = 62 / bits;
+    this.codes = codes;
+    this.words = words;
+    this.ranks = ranks;
+  }
+
+  /**
+   * Loads all rows of the dictionary tables, keeping the table order of
+   * words sharing a code.
+   *
+   * @return the table, or {@code null} if some code does not fit.
+   */
+  public static CodeTable load(SQLiteDatabase db, List<String> tables, String alphabet) {
+    int bits = 1;
+    while ((1 << bits) <= alphabet.length()) bits++;
+    int n = 0;
+    for (String table: tables) n += (int)DatabaseUtils.queryNumEntries(db, table);
+    final long[] c = new long[n];
+    String[] w = new String[n];
+    CodeTable t = new CodeTable(alphabet, bits, null, null, null);
+    int i = 0;
+    for (String table: tables) {
+      Cursor cursor = db.rawQuery(String.format("select hz, py from %s order by rowid", table), null);
+      if (cursor == null) return null;
+      while (cursor.moveToNext() && i < n) {
+        c[i] = t.pack(cursor.getString(1));
+        if (c[i] < 0) {
+          Log.w(TAG, String.format("Code out of table: %s", cursor.getString(1)));
+          cursor.close();
+          return null;
+        }
+        w[i++] = cursor.getString(0);
+      }
+      cursor.close();
+    }
+    n = i;
+
+    Integer[] order = new Integer[n];
+    for (i = 0; i < n; i++) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() { //穩定排序，保留詞序
+      public int compare(Integer a, Integer b) {
+        return c[a] < c[b] ? -1 : (c[a] == c[b] ? 0 : 1);
+      }
+    });
+    long[] codes = new long[n];
+    String[] words = new String[n];
+    int[] ranks = new int[n];
+    for (i = 0; i < n; i++) {
+      codes[i] = c[order[i]];
+      words[i] = w[order[i]];
+      ranks[i] = order[i];
+    }
+    return new CodeTable(alphabet, bits, codes, words, ranks);
+  }
+
+  /**
+   * Packs a code left-aligned, letter indexes starting from 1, so that
+   * all codes with the same prefix are adjacent.
+   *
+   * @return the packed code, or -1 if the code can not be packed.
+   */
+  private long pack(CharSequence s) {
+    int n = s.length();
+    if (n > maxLength) return -1;
+    long r = 0;
+    for (int i = 0; i < maxLength; i++) {
+      int k = 0;
+      if (i < n) {
+        k = alphabet.indexOf(s.charAt(i)) + 1;
+        if (k == 0) return -1;
+      }
+      r = (r << bits) | k;
+    }
+    return r;
+  }
+
+  private String unpack(long r) {
+    StringBuilder sb = new StringBuilder(maxLength);
+    for (int i = maxLength - 1; i >= 0; i--) {
+      int k = (int)((r >>> (i * bits)) & ((1 << bits) - 1));
+      if (k == 0) break;
+      sb.append(alphabet.charAt(k - 1));
+    }
+    return sb.toString();
+  }
+
+  /** Returns the first index whose code is not less than {@code key}. */
+  private int lowerBound(long key) {
+    int lo = 0, hi = codes.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (codes[mid] < key) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /** Returns the exclusive end of the codes starting with the first {@code length} letters of {@code key}. */
+  private int prefixEnd(long key, int length) {
+    long span = 1L << ((maxLength - length) * bits);
+    return lowerBound(key + span);
+  }
+
+  /**
+   * Looks up the words of a code.
+   *
+   * @param prefix also returns words whose codes start with the code.
+   * @param single only returns single characters.
+   * @param withCode returns the code as the second column.
+   * @return a cursor over at most {@code limit} words, or {@code null} if none.
+   */
+  public Cursor query(CharSequence s, boolean prefix, boolean single, boolean withCode, int limit) {
+    long key = pack(s);
+    if (key <= 0) return null;
+    int start = lowerBound(key);
+    int end = prefix ? prefixEnd(key, s.length()) : lowerBound(key + 1);
+    MatrixCursor cursor = new MatrixCursor(withCode ? new String[]{"hz", "py"} : new String[]{"hz"});
+    if (prefix) {
+      for (int i: selectByRank(start, end, single, limit)) {
+        cursor.addRow(withCode ? new Object[]{words[i], unpack(codes[i])} : new Object[]{words[i]});
+      }
+    } else {
+      int n = 0;
+      for (int i = start; i < end && n < limit; i++) { //同碼的詞已按詞序排列
+        if (single && words[i].length() != 1) continue;
+        cursor.addRow(withCode ? new Object[]{words[i], unpack(codes[i])} : new Object[]{words[i]});
+        n++;
+      }
+    }
+    if (!cursor.moveToFirst()) {
+      cursor.close();
+      return null;
+    }
+    return cursor;
+  }
+
+  /**
+   * Returns the indexes in a range of the at most {@code limit} words of
+   * the best ranks, best first.
+   */
+  private List<Integer> selectByRank(int start, int end, boolean single, int limit) {
+    Comparator<Integer> byRank = new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return ranks[a] - ranks[b];
+      }
+    };
+    PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.min(limit, 100) + 1, Collections.reverseOrder(byRank));
+    for (int i = start; i < end; i++) {
+      if (single && words[i].length() != 1) continue;
+      if (best.size() < limit) best.add(i);
+      else if (ranks[i] < ranks[best.peek()]) { //堆頂是最差的
+        best.poll();
+        best.add(i);
+      }
+    }
+    List<Integer> r = new ArrayList<Integer>(best);
+    Collections.sort(r, byRank);
+    return r;
+  }
+
+  /** Returns whether any code starts with {@code s}. */
+  public boolean hasPrefix(CharSequence s) {
+    long key = pack(s);
+    if (key <= 0) return false;
+    return lowerBound(key) < prefixEnd(key, s.length());
+  }
+
+  public int size() {
+    return codes.length;
+  }
+
+  /** Returns the estimated heap size in bytes. */
+  public long getSize() {
+    long size = (long)codes.length * (8 + 4 + 4);
+    for (String w: words) size += 40 + 2 * w.length(); //String與char[]開銷
+    return size;
+  }
+}
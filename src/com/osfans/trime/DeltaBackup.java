@@ -0,0 +1,406 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up only what differs from the bundled database: imported schemas
+ * and dictionaries, learned phrases and the n-gram counts.
+ * A table missing from the asset is written whole; a table of the asset
+ * whose rows are all still there, in order, gets only the rows added
+ * after them; any other changed table is replaced, and a table the user
+ * dropped is dropped again on restore.
+ * The backup is a gzipped stream of records: a table header with its
+ * CREATE statement and columns, its rows, and whole files.
+ */
+class DeltaBackup {
+  private static final String TAG = "DeltaBackup";
+  private static final int MAGIC = 0x74726431; //trd1
+  private static final int END = 0, REPLACE = 1, APPEND = 2, DROP = 3, ROW = 4, FILE = 5;
+  private static final String[] FTS_SHADOWS = {"_content", "_segments", "_segdir", "_docsize", "_stat"};
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private DeltaBackup() {
+  }
+
+  /**
+   * Returns the user tables of a database with their CREATE statements,
+   * leaving out internal and full-text shadow tables, and also staging
+   * tables and import checkpoints unless {@code imports} is set.
+   *
+   * @param schema the database name, {@code main} or an attached one.
+   */
+  private static Map<String, String> getTables(SQLiteDatabase db, String schema, boolean imports) {
+    Map<String, String> tables = new LinkedHashMap<String, String>();
+    List<String> virtual = new ArrayList<String>();
+    Cursor cursor = db.rawQuery(String.format("select name, sql from %s.sqlite_master where type = 'table' order by rowid", schema), null);
+    while (cursor.moveToNext()) {
+      String name = cursor.getString(0), sql = cursor.getString(1);
+      if (name.startsWith("sqlite_") || name.equals("android_metadata") || sql == null) continue;
+      if (!imports && (name.equals("import_checkpoint") || name.contains(DictionaryHelper.STAGE_SUFFIX))) continue;
+      if (sql.toUpperCase().startsWith("CREATE VIRTUAL TABLE")) virtual.add(name);
+      tables.put(name, sql);
+    }
+    cursor.close();
+    for (String v: virtual) {
+      for (String s: FTS_SHADOWS) tables.remove(v + s);
+    }
+    return tables;
+  }
+
+  private static List<String> getColumn(SQLiteDatabase db, String sql, String[] args) {
+    List<String> values = new ArrayList<String>();
+    Cursor cursor = db.rawQuery(sql, args);
+    while (cursor.moveToNext()) values.add(cursor.getString(0));
+    cursor.close();
+    return values;
+  }
+
+  /**
+   * Carries the user's data from an old database into a newly installed
+   * asset database before it replaces the old one. Tables the asset lacks,
+   * such as imported dictionaries, user phrases and unfinished imports,
+   * are copied whole, and so are the dictionaries recorded as imported;
+   * schemas the asset lacks or that were imported replace the bundled
+   * rows. Other bundled tables keep the new version.
+   */
+  static void carryOver(File from, File to) {
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(to.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+    try {
+      db.execSQL("ATTACH DATABASE ? AS old", new Object[] {from.getPath()});
+      Map<String, String> bundled = getTables(db, "main", true);
+      Map<String, String> old = getTables(db, "old", true);
+      boolean recorded = old.containsKey(DictionaryHelper.IMPORTED), sharded = old.containsKey("shard");
+      List<String> dicts = recorded ? getColumn(db, "select name from old.imported where type = 'dict'", null) : new ArrayList<String>();
+      db.beginTransaction();
+      try {
+        List<String> carried = new ArrayList<String>();
+        for (Map.Entry<String, String> e: old.entrySet()) {
+          String table = e.getKey();
+          if (bundled.containsKey(table)) {
+            if (table.equals("schema") || table.equals("shard")) continue; //按行合併
+            List<String> dict = sharded ? getColumn(db, "select dict from old.shard where name = ?", new String[] {table}) : null;
+            boolean imported = dicts.contains(table) || (dict != null && !dict.isEmpty() && dicts.contains(dict.get(0)));
+            if (!imported) continue;
+            db.execSQL("DROP TABLE main." + table);
+          }
+          db.execSQL(e.getValue());
+          db.execSQL(String.format("INSERT INTO main.%s SELECT * FROM old.%s ORDER BY rowid", table, table));
+          carried.add(table);
+        }
+        if (sharded && bundled.containsKey("shard")) {
+          for (String table: carried) {
+            db.execSQL("DELETE FROM main.shard WHERE name = ?", new Object[] {table});
+            db.execSQL("INSERT INTO main.shard SELECT * FROM old.shard WHERE name = ?", new Object[] {table});
+          }
+        }
+        if (old.containsKey("schema") && bundled.containsKey("schema")) {
+          if (recorded) db.execSQL("DELETE FROM main.schema WHERE schema_id IN (SELECT name FROM old.imported WHERE type = 'schema')");
+          String rows = "FROM old.schema WHERE schema_id NOT IN (SELECT schema_id FROM main.schema)";
+          db.execSQL("INSERT INTO main.schema SELECT * " + rows + " AND _id NOT IN (SELECT _id FROM main.schema)"); //盡量保留編號
+          db.execSQL("INSERT INTO main.schema(schema_id, name, full) SELECT schema_id, name, full " + rows);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      db.execSQL("DETACH DATABASE old");
+    } finally {
+      db.close();
+    }
+  }
+
+  private static Cursor queryRows(SQLiteDatabase db, String table) {
+    return db.rawQuery(String.format("select * from %s order by rowid", table), null);
+  }
+
+  private static String getKey(Cursor cursor) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < cursor.getColumnCount(); i++) {
+      if (i > 0) sb.append('\0');
+      sb.append(cursor.isNull(i) ? "\1" : cursor.getString(i));
+    }
+    return sb.toString();
+  }
+
+  private static String[] getColumnNames(SQLiteDatabase db, String table) {
+    Cursor cursor = db.rawQuery(String.format("select * from %s limit 0", table), null);
+    String[] columns = cursor.getColumnNames();
+    cursor.close();
+    return columns;
+  }
+
+  /**
+   * Returns the mode to back up a table of the asset with, or -1 if it is
+   * unchanged. Tables are compared by columns and rows rather than by their
+   * CREATE statements, which differ once a full-text table is upgraded.
+   */
+  private static int compare(SQLiteDatabase db, SQLiteDatabase asset, String table) {
+    if (!Arrays.equals(getColumnNames(db, table), getColumnNames(asset, table))) return REPLACE;
+    Map<String, Integer> rows = new HashMap<String, Integer>();
+    Cursor cursor = queryRows(asset, table);
+    int n = 0;
+    while (cursor.moveToNext()) {
+      String key = getKey(cursor);
+      Integer count = rows.get(key);
+      rows.put(key, count == null ? 1 : count + 1);
+      n++;
+    }
+    cursor.close();
+    boolean added = false, reordered = false;
+    cursor = queryRows(db, table);
+    while (cursor.moveToNext()) {
+      String key = getKey(cursor);
+      Integer count = rows.get(key);
+      if (count != null) {
+        if (added) reordered = true; //新增行之後不能再有內置行
+        if (count == 1) rows.remove(key);
+        else rows.put(key, count - 1);
+        n--;
+      } else added = true;
+    }
+    cursor.close();
+    if (n > 0 || reordered) return REPLACE;
+    return added ? APPEND : -1;
+  }
+
+  /**
+   * Writes the differences of a database from the asset database, then
+   * the user files.
+   */
+  static void export(Context context, SQLiteDatabase db, SQLiteDatabase asset, OutputStream os) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os, BUFFER_SIZE), BUFFER_SIZE));
+    out.writeInt(MAGIC);
+    Map<String, String> tables = getTables(db, "main", false);
+    Map<String, String> bundled = getTables(asset, "main", false);
+    for (String table: bundled.keySet()) {
+      if (tables.containsKey(table)) continue;
+      out.writeByte(DROP);
+      writeString(out, table);
+    }
+    for (Map.Entry<String, String> e: tables.entrySet()) {
+      String table = e.getKey();
+      int mode = bundled.containsKey(table) ? compare(db, asset, table) : REPLACE;
+      if (mode < 0) continue;
+      Cursor cursor = queryRows(db, table);
+      String[] columns = cursor.getColumnNames();
+      out.writeByte(mode);
+      writeString(out, table);
+      writeString(out, e.getValue());
+      out.writeInt(columns.length);
+      for (String c: columns) writeString(out, c);
+      Map<String, Integer> skip = (mode == APPEND) ? getRows(asset, table) : null;
+      while (cursor.moveToNext()) {
+        if (skip != null) { //只寫新增的行
+          String key = getKey(cursor);
+          Integer count = skip.get(key);
+          if (count != null) {
+            if (count == 1) skip.remove(key);
+            else skip.put(key, count - 1);
+            continue;
+          }
+        }
+        out.writeByte(ROW);
+        for (int i = 0; i < columns.length; i++) writeString(out, cursor.isNull(i) ? null : cursor.getString(i));
+      }
+      cursor.close();
+    }
+    writeFile(out, PhraseLearner.getJournal(context));
+    out.writeByte(FILE);
+    writeString(out, NgramStore.FILE_NAME);
+    NgramStore.get(context).writeTo(out);
+    out.writeByte(END);
+    out.close();
+  }
+
+  private static Map<String, Integer> getRows(SQLiteDatabase db, String table) {
+    Map<String, Integer> rows = new HashMap<String, Integer>();
+    Cursor cursor = queryRows(db, table);
+    while (cursor.moveToNext()) {
+      String key = getKey(cursor);
+      Integer count = rows.get(key);
+      rows.put(key, count == null ? 1 : count + 1);
+    }
+    cursor.close();
+    return rows;
+  }
+
+  private static void writeFile(DataOutputStream out, File file) throws IOException {
+    if (!file.exists()) return;
+    out.writeByte(FILE);
+    writeString(out, file.getName());
+    out.writeInt((int)file.length());
+    InputStream is = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n, left = (int)file.length();
+      while (left > 0 && (n = is.read(buffer, 0, Math.min(left, buffer.length))) > 0) {
+        out.write(buffer, 0, n);
+        left -= n;
+      }
+      if (left > 0) throw new IOException("Error read " + file);
+    } finally {
+      is.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n < 0) return null;
+    byte[] b = new byte[n];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  /**
+   * Applies a backup to a database in one transaction, so that a broken
+   * backup changes nothing, then restores the user files.
+   */
+  static void restore(Context context, SQLiteDatabase db, InputStream is) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is, BUFFER_SIZE), BUFFER_SIZE));
+    try {
+      if (in.readInt() != MAGIC) throw new IOException("Error backup format");
+      SQLiteStatement insert = null;
+      int columns = 0, op;
+      db.beginTransaction();
+      try {
+        for (op = in.readByte(); op != END && op != FILE; op = in.readByte()) {
+          if (op == ROW) {
+            for (int i = 0; i < columns; i++) {
+              String s = readString(in);
+              if (s == null) insert.bindNull(i + 1);
+              else insert.bindString(i + 1, s);
+            }
+            insert.executeInsert();
+            continue;
+          }
+          String table = readString(in);
+          if (insert != null) insert.close();
+          insert = null;
+          if (op == DROP) {
+            db.execSQL("DROP TABLE IF EXISTS " + table);
+            continue;
+          }
+          String sql = readString(in);
+          if (op == REPLACE) db.execSQL("DROP TABLE IF EXISTS " + table);
+          if (op == REPLACE || !hasTable(db, table)) db.execSQL(sql);
+          columns = in.readInt();
+          StringBuilder names = new StringBuilder(), values = new StringBuilder();
+          for (int i = 0; i < columns; i++) {
+            if (i > 0) {
+              names.append(',');
+              values.append(',');
+            }
+            names.append(readString(in));
+            values.append('?');
+          }
+          insert = db.compileStatement(String.format("INSERT INTO %s(%s) VALUES(%s)", table, names, values));
+        }
+        if (insert != null) insert.close();
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      restoreFiles(context, in, op);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void restoreFiles(Context context, DataInputStream in, int op) throws IOException {
+    for (; op == FILE; op = in.readByte()) {
+      String name = readString(in);
+      if (name.equals(NgramStore.FILE_NAME)) {
+        NgramStore.get(context).readFrom(in);
+        continue;
+      }
+      int n = in.readInt();
+      File file = PhraseLearner.getJournal(context);
+      if (!name.equals(file.getName())) {
+        Log.w(TAG, "Skip unknown file " + name);
+        skip(in, n);
+        continue;
+      }
+      OutputStream os = new FileOutputStream(file, true); //追加到學詞日誌
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (n > 0) {
+          int len = Math.min(n, buffer.length);
+          in.readFully(buffer, 0, len);
+          os.write(buffer, 0, len);
+          n -= len;
+        }
+      } finally {
+        os.close();
+      }
+    }
+  }
+
+  /** Skips a record of {@code n} bytes, failing at the end of the stream. */
+  static void skip(DataInputStream in, int n) throws IOException {
+    if (n < 0) throw new IOException("Error record size " + n);
+    while (n > 0) {
+      int k = in.skipBytes(n);
+      if (k <= 0) {
+        in.readByte(); //到結尾時拋出EOFException
+        k = 1;
+      }
+      n -= k;
+    }
+  }
+
+  private static boolean hasTable(SQLiteDatabase db, String table) {
+    Cursor cursor = db.rawQuery("select name from sqlite_master where type = 'table' and name = ?", new String[] {table});
+    boolean exists = cursor.moveToFirst();
+    cursor.close();
+    return exists;
+  }
+}
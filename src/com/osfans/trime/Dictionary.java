@@ -20,48 +20,112 @@ import android.content.Context;
 //import android.util.Log;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
-import java.util.regex.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.IOException;
 
 import org.yaml.snakeyaml.Yaml;
 
+import com.osfans.trime.engine.BatchConverter;
+import com.osfans.trime.engine.Converter;
+import com.osfans.trime.engine.Engine;
+import com.osfans.trime.engine.MergedRows;
+import com.osfans.trime.engine.Schema;
+import com.osfans.trime.engine.Speller;
+import com.osfans.trime.engine.Storage;
+import com.osfans.trime.engine.Translator;
+
 /**
  * Reads a word-dictionary and provides word-suggestions as a list of characters
  * for the specified input.
  */
 public class Dictionary {
+  private static final int MAX_TYPOS = 2;
+  private static final long TYPO_BUDGET = 30; //ms
+  private static final int LOOKUP_THREADS = 2;
+  private static ExecutorService lookupExecutor;
 
   private SQLiteDatabase mDatabase;
   private DictionaryHelper mHelper;
+  private PhraseLearner learner;
+  private NgramStore ngrams;
+  private String lastWord;
   private final SharedPreferences preferences;
 
-  private Map<String,Object> mSchema, mDefaultSchema;
+  private Map<String,Object> mDefaultSchema;
+  private Schema schema;
+  private Speller speller;
+  private Storage storage;
+  private Translator translator;
+  private Converter converter;
   private Object keyboard;
   private String table;
-  private String delimiter, alphabet, initials;
+  private List<String> packs;
+  private Map<String, Map<String, String>> shards = new HashMap<String, Map<String, String>>();
+  private CodeTable codeTable;
+  private long typoProbeCost;
+  private Punctuator punctuator = new Punctuator();
 
-  private Pattern syllableP, autoSelectSyllableP;
-  private String[][] preeditRule, spellRule, lookupRule, commentRule, fuzzyRule;
-  private String[]  namedFuzzyRules;
-  private boolean[] fuzzyRulesPref;
+  private String[][] preeditRule, commentRule;
+  private LruCache<String, String> preeditCache, commentCache;
+  private final SchemaCache schemaCache = new SchemaCache(0);
 
   protected Dictionary(Context context) {
     preferences = PreferenceManager.getDefaultSharedPreferences(context);
     initDefaultSchema(context);
     mHelper = new DictionaryHelper(context);
+    learner = new PhraseLearner(context, mHelper);
+    ngrams = NgramStore.get(context);
   }
 
   public void init(Context context) {
+    mDatabase = null;
+    if (!DictionaryHelper.isReady()) { //碼表安裝完成前先用默認方案的鍵盤
+      initDefaultKeyboard();
+      return;
+    }
+    open();
+  }
+
+  private void open() {
     mDatabase = mHelper.getReadableDatabase();
+    storage = new SQLiteStorage(mDatabase);
+    converter = new Converter(storage);
+    schemaCache.clear();
+    learner.reload(); //導入或恢復後重讀學到的詞
     initSchema();
   }
 
+  /**
+   * Opens the database before the first lookup if it was still being
+   * installed at init, waiting for the installer.
+   */
+  private void waitReady() {
+    if (mDatabase == null) open();
+  }
+
+  private void initDefaultKeyboard() {
+    SchemaCache.Entry entry = new SchemaCache.Entry(new HashMap<String, Object>(), 0);
+    schema = new Schema(entry.schema, mDefaultSchema);
+    speller = new Speller(schema);
+    preeditCache = entry.preeditCache;
+    commentCache = entry.commentCache;
+    keyboard = getValue("trime", "keyboard");
+    punctuator = Punctuator.compile((Map<String,Object>)getValue("punctuator", "half_shape"));
+  }
+
   public DictionaryHelper getHelper() {
     return mHelper;
   }
@@ -75,113 +139,19 @@ public class Dictionary {
   }
 
   public boolean isAlphabet(CharSequence cs, boolean hasComposingText) {
-    if (!hasComposingText && initials != null && cs.length() == 1 && !initials.contains(cs)) return false;
-    String[] ss = cs.toString().split("");
-    for(String s: ss) if(!alphabet.contains(s)) return false;
-    return true;
-  }
-
-  private boolean isSyllable(String s) {
-    if (syllableP == null) return true;
-    if (!hasDelimiter()) return syllableP.matcher(s).matches();
-    String[] ss = s.split(getDelimiter());
-    for (String i: ss) if(!syllableP.matcher(i).matches()) return false;
-    return true;
+    return speller.isAlphabet(cs, hasComposingText);
   }
 
   public boolean isAutoSelect(CharSequence s) {
-    return (autoSelectSyllableP != null) && autoSelectSyllableP.matcher(s).matches();
+    return speller.isAutoSelect(s);
   }
 
   public String correctSpell(String r, CharSequence text) {
-    String s = translate(r + text, spellRule);
-    if (isSyllable(s)) return s;
-    if (hasDelimiter()) {
-      s = translate(r + getDelimiter() + text, spellRule);
-      if (isSyllable(s)) return s;
-    }
-    return null;
-  }
-
-  private String fuzzyText(String s) {
-    if (fuzzyRule == null) return s;
-    int n = fuzzyRule.length;
-    if (n == 0) return s;
-    StringBuilder r = new StringBuilder(s);
-    ArrayList<Integer> b = new ArrayList<Integer>();
-    ArrayList<Integer> bn = new ArrayList<Integer>();
-    ArrayList<String> fuzzyList =  new ArrayList<String>();
-    if (fuzzyRulesPref != null) {
-      for (int i = 0; i < fuzzyRulesPref.length; i++) {
-        if (fuzzyRulesPref[i]) fuzzyList.add(namedFuzzyRules[i]);
-      }
-    }
-    for (int j=0; j<n; j++){
-      String[] rule = fuzzyRule[j];
-      if (rule[0].length() == 0 || fuzzyList.contains(rule[0])) {
-        Matcher m = Pattern.compile(rule[1]).matcher(s);
-        while(m.find()) {
-          b.add(j);
-          bn.add(m.start());
-        }
-      }
-    }
-    int cnt = b.size();
-    if (cnt == 0) return s;
-    String p = s;
-    for (int i = 1;  i < (1 << cnt); i++) {
-      p = s;
-      for (int j = 0; j < cnt; j++) {
-        int bj = b.get(j);
-        int bnj = bn.get(j);
-        String[] rule = fuzzyRule[bj];
-        if ((i & (1 << j)) != 0) {
-          StringBuffer sb = new StringBuffer(p.length());
-          Matcher m = Pattern.compile(rule[1]).matcher(p);
-          if (m.find(bnj)) m.appendReplacement(sb, rule[2]);
-          m.appendTail(sb);
-          m.reset();
-          p = sb.toString();
-        }
-      }
-      r.append(" OR ");
-      r.append(p);
-    }
-    return r.toString();
-  }
-
-  private String translate(String s, String[][] rules) {
-    if (rules == null) return s;
-    for (String[] rule:  rules) {
-      if (rule[0].contentEquals("xlit")) {
-        String[] rulea = rule[1].split(rule[1].contains("|") ? "\\|" : "");
-        String[] ruleb = rule[2].split(rule[2].contains("|") ? "\\|" : "");
-        int n = rulea.length;
-        if (n == ruleb.length) {
-          for (int i = 0; i < n; i++) if (rulea[i].length() > 0) s = s.replace(rulea[i], ruleb[i]);
-        }
-      } else s = s.replaceAll(rule[1],rule[2]);
-    }
-    return s;
-  }
-
-  private String[][] getRule(String k1, String k2) {
-    List<String> rule = (List<String>)getValue(k1, k2);
-    if (rule!=null && rule.size() > 0) {
-      int n = rule.size();
-      String[][] rules = new String[n][4];
-      for(int i = 0; i < n; i++) {
-        String s = rule.get(i);
-        rules[i] = s.split(s.contains(" ") ? " " : "(?<!\\\\)/", 4);
-        for(int j = 0; j < rules[i].length; j++)
-          rules[i][j] = rules[i][j].replace("\\/","/");
-      }
-      return rules;
-    }
-    return null;
+    return speller.correctSpell(r, text);
   }
 
   public void setFuzzyRule( int which, boolean isChecked) {
+    boolean[] fuzzyRulesPref = speller.getFuzzyRulesPref();
     fuzzyRulesPref[which] = isChecked;
     StringBuilder s = new StringBuilder();
     for(boolean b: fuzzyRulesPref) s.append( b ? "1" : "0");
@@ -192,83 +162,81 @@ public class Dictionary {
   }
 
   private void initNamedFuzzyRule() {
-    ArrayList<String> fuzzyList = new ArrayList<String>();
-    if (fuzzyRule != null) {
-      for(String[] i: fuzzyRule) {
-        if(i[0].length() > 0) {
-          if (!fuzzyList.contains(i[0])) fuzzyList.add(i[0]);
-        }
-      }
-    }
-    if (fuzzyList.size()>0) {
-      fuzzyRulesPref =  new boolean[fuzzyList.size()];
-      namedFuzzyRules = new String[fuzzyList.size()];
-      fuzzyList.toArray(namedFuzzyRules);
-      String s = preferences.getString(String.format("fuzzy%d", getSchemaId()), "");
-      if (s.length() > 0) {
-        for(int i = 0; i < s.length(); i++) fuzzyRulesPref[i] = (s.charAt(i) == '1');
-      }
-    } else {
-      namedFuzzyRules = null;
-      fuzzyRulesPref = null;
-    }
+    boolean[] fuzzyRulesPref = speller.getFuzzyRulesPref();
+    if (fuzzyRulesPref == null) return;
+    String s = preferences.getString(String.format("fuzzy%d", getSchemaId()), "");
+    for(int i = 0; i < s.length() && i < fuzzyRulesPref.length; i++) fuzzyRulesPref[i] = (s.charAt(i) == '1');
   }
 
   public String[] getNamedFuzzyRules() {
-    return namedFuzzyRules;
+    return speller.getNamedFuzzyRules();
   }
 
   public boolean[] getFuzzyRulesPref() {
-    return fuzzyRulesPref;
-  }
-
-  private Object getValue(String k1) {
-    if (mSchema.containsKey(k1)) return mSchema.get(k1);
-    if (mDefaultSchema.containsKey(k1)) return mDefaultSchema.get(k1);
-    return null;
+    return speller.getFuzzyRulesPref();
   }
 
   private Object getValue(String k1, String k2) {
-    Map<String, Object> m;
-    if (mSchema.containsKey(k1)) {
-      m = (Map<String, Object>)mSchema.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    if (mDefaultSchema.containsKey(k1)) {
-      m = (Map<String, Object>)mDefaultSchema.get(k1);
-      if (m != null && m.containsKey(k2)) return m.get(k2);
-    }
-    return null;
+    return schema.getValue(k1, k2);
   }
 
   private Object getDefaultValue(String k1, String k2, Object o) {
-    Object ret = getValue(k1, k2);
-    return (ret != null) ? ret : o;
+    return schema.getDefaultValue(k1, k2, o);
   }
 
   private void initSchema() {
     int id = getSchemaId();
-    Cursor cursor = query(String.format("select * from schema where _id = %d", id), null);
-    if (cursor == null) return;
-    mSchema = (Map<String,Object>)new Yaml().load(cursor.getString(cursor.getColumnIndex("full")));
-    cursor.close();
-
-    delimiter = (String)getValue("speller", "delimiter");
-    alphabet = (String)getValue("speller", "alphabet");
-    initials = (String)getValue("speller", "initials");
-    preeditRule = getRule("translator", "preedit_format");
-    commentRule = getRule("translator", "comment_format");
+    schemaCache.setBudget(getSchemaCacheSize());
+    SchemaCache.Entry entry = schemaCache.get(id);
+    boolean loaded = (entry != null);
+    if (!loaded) {
+      Cursor cursor = query(String.format("select * from schema where _id = %d", id), null);
+      if (cursor == null) return;
+      String full = cursor.getString(cursor.getColumnIndex("full"));
+      cursor.close();
+      entry = new SchemaCache.Entry((Map<String,Object>)new Yaml().load(full), full.length());
+      entry.compiled = new Schema(entry.schema, mDefaultSchema);
+      entry.speller = new Speller(entry.compiled);
+      entry.translator = new Translator(storage, entry.speller);
+    }
+    schema = entry.compiled;
+    speller = entry.speller;
+    translator = entry.translator;
+
+    preeditRule = schema.getRule("translator", "preedit_format");
+    commentRule = schema.getRule("translator", "comment_format");
+    preeditCache = entry.preeditCache;
+    commentCache = entry.commentCache;
     table = (String)getValue("translator", "dictionary");
+    packs = (List<String>)getValue("translator", "packs");
+    if (packs != null && packs.isEmpty()) packs = null;
+    initShards();
+    learner.setDictionary(table);
 
-    String a = (String)getValue("trime", "syllable");
-    syllableP = (a!=null) ? Pattern.compile(a) : null;
-    a = (String) getValue("trime", "auto_select_syllable");
-    autoSelectSyllableP = (a!=null) ? Pattern.compile(a) : null;
-    spellRule = getRule("trime", "spell");
-    lookupRule = getRule("trime", "lookup");
-    fuzzyRule = getRule("trime", "fuzzy");
     keyboard = (Object)getValue("trime", "keyboard");
+    punctuator = Punctuator.compile((Map<String,Object>)getValue("punctuator", "half_shape"));
     initNamedFuzzyRule();
+    if (!loaded) {
+      if ("table".equals(getValue("trime", "engine"))) entry.codeTable = CodeTable.load(mDatabase, getTables(table, null), speller.getAlphabet());
+      schemaCache.put(id, entry);
+    }
+    codeTable = entry.codeTable;
+  }
+
+  private void initShards() {
+    shards.clear();
+    List<String> dicts = new ArrayList<String>();
+    dicts.add(table);
+    if (packs != null) dicts.addAll(packs);
+    for (String dict: dicts) {
+      Map<String, String> m = DictionaryHelper.getShards(mDatabase, dict);
+      if (m != null) shards.put(dict, m);
+    }
+  }
+
+  /** Returns the tables of a dictionary for a match, by {@link Engine#getTables}. */
+  private List<String> getTables(String table, String match) {
+    return Engine.getTables(table, shards.get(table), match);
   }
 
   public Object getKeyboards() {
@@ -292,29 +260,65 @@ public class Dictionary {
   }
 
   public Cursor getSchemas() {
+    waitReady();
     return query("select * from schema", null);
   }
 
   public String preedit(String s) {
-    return translate(s, preeditRule);
+    return format(s, preeditRule, preeditCache);
   }
 
   public String comment(String s) {
-    return translate(s, commentRule);
+    return format(s, commentRule, commentCache);
+  }
+
+  private String format(String s, String[][] rules, LruCache<String, String> cache) {
+    if (rules == null) return s;
+    if (cache == null) return Speller.translate(s, rules); //方案未載入
+    String r = cache.get(s);
+    if (r == null) {
+      r = Speller.translate(s, rules);
+      cache.put(s, r);
+    }
+    return r;
+  }
+
+  /**
+   * Returns the hit and miss counts of the preedit and comment caches of
+   * the current schema.
+   */
+  public String getFormatCacheStats() {
+    if (preeditCache == null) return "";
+    return String.format("preedit %d/%d, comment %d/%d",
+      preeditCache.hitCount(), preeditCache.missCount(),
+      commentCache.hitCount(), commentCache.missCount());
+  }
+
+  /**
+   * Returns the estimated memory of each resident schema, then the format
+   * cache counts of the current one.
+   */
+  public String getSchemaCacheStats() {
+    return String.format("%s\n%s", schemaCache.getStats(), getFormatCacheStats());
+  }
+
+  private long getSchemaCacheSize() {
+    return Long.parseLong(preferences.getString("pref_schema_cache_size", "8")) * 1024 * 1024;
   }
 
   public String[] getComment(CharSequence code) {
-    String sql = String.format("select py from %s where hz match ?", table);
-    Cursor cursor = query(sql, new String[]{code.toString()});
-    if (cursor == null) return null;
-    int n = cursor.getCount();
-    int i = 0;
-    String[] s = new String[n];
-    do {
-        s[i++] = comment(cursor.getString(0));
-    } while (cursor.moveToNext());
-    cursor.close();
-    return s;
+    waitReady();
+    List<String> s = new ArrayList<String>();
+    for (String t: getTables(table, null)) {
+      String sql = String.format("select py from %s where hz match ?", t);
+      Cursor cursor = query(sql, new String[]{code.toString()});
+      if (cursor == null) continue;
+      do {
+          s.add(comment(cursor.getString(0)));
+      } while (cursor.moveToNext());
+      cursor.close();
+    }
+    return s.isEmpty() ? null : s.toArray(new String[s.size()]);
   }
 
   /**
@@ -325,48 +329,207 @@ public class Dictionary {
    *     is no word for that input.
    */
   public Cursor getWord(CharSequence code) {
-    String s = code.toString();
-    s = translate(s, lookupRule);
-    if (fuzzyRule != null) s = fuzzyText(s);
-
-    boolean fullPyOn = isFullPy() && s.length() < 3;
-    if (hasDelimiter() && s.contains(getDelimiter())) return getPhrase(s.replace(getDelimiter(), "'"));
-
-    Cursor cursor = null;
-    String sql;
-    //Log.e("kyle", "word start");
-    sql = String.format("select %s from %s where py match ? and not glob('* *', py) %s", getQueryCol(), table, getSingle());
-    cursor = query(sql, new String[]{s});
-    if (cursor == null && !fullPyOn) {
-      s = s.replace(" OR", "* OR") + "*";
-      cursor = query(sql + " limit 100", new String[]{s});
+    waitReady();
+    Storage.Rows rows = (packs == null) ? getWord(code, table, 0) : getMergedWord(code, 0);
+    return SQLiteStorage.toCursor(addLearned(code, rows), getQueryCol().split(","));
+  }
+
+  /** Puts the learned phrases of a code before the rows looked up. */
+  private Storage.Rows addLearned(CharSequence code, Storage.Rows rows) {
+    String py = hasDelimiter() ? getLearnCode(code) : null;
+    List<String> words = (py != null) ? learner.getPhrases(py) : null;
+    if (words == null) return rows;
+    List<String[]> learned = new ArrayList<String[]>();
+    boolean withCode = getQueryCol().contains("py");
+    for (String w: words) learned.add(withCode ? new String[]{w, py} : new String[]{w});
+    return MergedRows.merge(learned, Collections.singletonList(rows)); //學到的詞優先
+  }
+
+  private String getLearnCode(CharSequence code) {
+    return speller.getLookupCode(code.toString()).replace(getDelimiter(), " ");
+  }
+
+  /**
+   * Tells the learners about a commit: a single character picked with its
+   * code continues a phrase, anything else ends it; a picked word is
+   * counted as following the previous picked word.
+   */
+  public void learn(String word, String code) {
+    if (word != null && lastWord != null) ngrams.add(lastWord, word, 1);
+    lastWord = word;
+    if (word != null && word.length() == 1 && code != null && code.length() > 0
+        && hasDelimiter() && !code.contains(getDelimiter())) {
+      learner.add(word, getLearnCode(code));
+    } else learner.flush();
+  }
+
+  private boolean hasWord(CharSequence code) {
+    Storage.Rows rows = getWord(code, table, 1);
+    for (int i = 0; rows == null && packs != null && i < packs.size(); i++) rows = getWord(code, packs.get(i), 1);
+    if (rows == null) return false;
+    rows.close();
+    return true;
+  }
+
+  /**
+   * Returns the only candidate for the input, probing at most two rows
+   * instead of counting all matches. Learned phrases count, as in
+   * {@link #getWord(CharSequence)}.
+   *
+   * @return the candidate as in the candidate view, or {@code null} if
+   *     there is no word or more than one.
+   */
+  public String getUniqueWord(CharSequence code) {
+    waitReady();
+    Storage.Rows rows = (packs == null) ? getWord(code, table, 2) : getMergedWord(code, 2);
+    rows = addLearned(code, rows);
+    if (rows == null) return null;
+    String word = rows.getString(0);
+    String py = rows.getColumnCount() > 1 ? comment(rows.getString(1)) : "";
+    String s = rows.moveToNext() ? null : String.format("%s\t%s", word, py);
+    rows.close();
+    return s;
+  }
+
+  /**
+   * Looks up a dictionary, merging its shards by rank.
+   *
+   * @param limit the maximum number of rows of each table, or 0 for the default.
+   * @return the rows, on the first one, or {@code null} if none.
+   */
+  private Storage.Rows getWord(CharSequence code, String table, int limit) {
+    if (codeTable != null && table.equals(this.table)) return SQLiteStorage.toRows(getTableWord(code, limit));
+    String s = speller.getMatch(code.toString());
+
+    List<String> tables = getTables(table, s);
+    if (tables.size() == 1) return getWord(s, tables.get(0), limit);
+    List<Storage.Rows> results = new ArrayList<Storage.Rows>(tables.size());
+    for (String t: tables) results.add(getWord(s, t, limit));
+    return MergedRows.merge(null, results);
+  }
+
+  private Storage.Rows getWord(String s, String table, int limit) {
+    return translator.getWord(s, table, getQueryCol(), isSingle(), isFullPy(), limit);
+  }
+
+  /**
+   * Searches for the nearest code that has words, replacing up to
+   * {@link #MAX_TYPOS} typed keys with their adjacent keys, fewest
+   * replacements first. Gives up after {@link #TYPO_BUDGET} milliseconds,
+   * or earlier when the slowest lookup so far would not fit in the rest.
+   *
+   * @param keys the typed keys, each with its adjacent key codes nearest first.
+   * @return the corrected composing text, or {@code null} if none is found.
+   */
+  public String correctTypo(List<int[]> keys) {
+    waitReady();
+    long deadline = System.currentTimeMillis() + TYPO_BUDGET;
+    typoProbeCost = 0;
+    for (int typos = 1; typos <= MAX_TYPOS; typos++) {
+      String s = searchTypo(keys, 0, "", typos, deadline);
+      if (s != null) return s;
+      if (System.currentTimeMillis() > deadline) break;
     }
-    //Log.e("kyle", "word end");
-    return cursor;
+    return null;
   }
 
-  private Cursor getPhrase(CharSequence code) {
-    boolean fullPyOn = isFullPy() && code.length() < 6;
-    String sql = String.format("select %s from %s where py match ? limit 100", getQueryCol(), table);
-    String s = String.format("\"^%s\"",code.toString().replace(" OR ", "\" OR \"^").replace("'", " "));
-    //Log.e("kyle", "phrase start");
-    Cursor cursor = query(sql, new String[]{s});
-    if (cursor != null || fullPyOn) return cursor;
-    s = String.format("\"^%s*\"",code.toString().replace(" OR ", "*\" OR \"^").replace("'", " "));
-    cursor = query(sql, new String[]{s});
-    if (cursor != null) return cursor;
-    s = String.format("\"^%s*\"",code.toString().replace(" OR ", "*\" OR \"^").replace("'", "* "));
-    cursor = query(sql, new String[]{s});
-    //Log.e("kyle", "phrase end");
+  private String searchTypo(List<int[]> keys, int i, String spelled, int typos, long deadline) {
+    if (System.currentTimeMillis() > deadline) return null;
+    int n = keys.size();
+    if (i == n) {
+      long start = System.currentTimeMillis();
+      if (start + typoProbeCost > deadline) return null; //查詢會超時
+      boolean found = hasWord(spelled);
+      typoProbeCost = Math.max(typoProbeCost, System.currentTimeMillis() - start);
+      return found ? spelled : null;
+    }
+    int[] codes = keys.get(i);
+    for (int j = 0; j < codes.length; j++) {
+      int left = (j == 0) ? typos : typos - 1;
+      if (left < 0) break;
+      if (left > n - i - 1) continue; //剩餘按鍵不足
+      String c = String.valueOf((char)codes[j]);
+      String s = isDelimiter(c) ? spelled + getDelimiter() : correctSpell(spelled, c);
+      if (s == null) continue;
+      if (codeTable != null && !codeTable.hasPrefix(s)) continue;
+      s = searchTypo(keys, i + 1, s, left, deadline);
+      if (s != null) return s;
+    }
+    return null;
+  }
+
+  private static synchronized ExecutorService getLookupExecutor() {
+    if (lookupExecutor == null) lookupExecutor = Executors.newFixedThreadPool(LOOKUP_THREADS);
+    return lookupExecutor;
+  }
+
+  /**
+   * Looks up the main dictionary on the calling thread and each pack on a
+   * small shared pool at the same time, then merges them by rank through
+   * {@link MergedRows}, earlier dictionaries first on ties. The rows are
+   * read lazily as the candidates are paged. Without write-ahead logging
+   * the lookups would queue on the one connection, so the packs are looked
+   * up in turn instead.
+   *
+   * @param limit the maximum number of rows of each table, or 0 for the default.
+   */
+  private Storage.Rows getMergedWord(final CharSequence code, final int limit) {
+    List<Future<Storage.Rows>> futures = new ArrayList<Future<Storage.Rows>>(packs.size());
+    if (DictionaryHelper.isWalSupported()) {
+      for (final String pack: packs) {
+        futures.add(getLookupExecutor().submit(new Callable<Storage.Rows>() {
+          public Storage.Rows call() {
+            return getWord(code, pack, limit);
+          }
+        }));
+      }
+    }
+    List<Storage.Rows> results = new ArrayList<Storage.Rows>(packs.size() + 1);
+    boolean success = false;
+    try {
+      results.add(getWord(code, table, limit));
+      if (futures.isEmpty()) {
+        for (String pack: packs) results.add(getWord(code, pack, limit));
+      } else {
+        for (Future<Storage.Rows> f: futures) results.add(f.get());
+      }
+      success = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Error lookup packs", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error lookup packs", e);
+    } finally {
+      if (!success) {
+        for (Storage.Rows rows: results) {
+          if (rows != null) rows.close();
+        }
+      }
+    }
+    return MergedRows.merge(null, results);
+  }
+
+  private Cursor getTableWord(CharSequence code, int limit) {
+    boolean single = isSingle();
+    boolean withCode = getQueryCol().contains("py");
+    Cursor cursor = codeTable.query(code, false, single, withCode, limit > 0 ? limit : Integer.MAX_VALUE);
+    if (cursor == null && !isFullPy()) cursor = codeTable.query(code, true, single, withCode, limit > 0 ? Math.min(limit, 100) : 100);
     return cursor;
   }
 
   public Cursor getAssociation(CharSequence code) {
     if (!isAssociation()) return null;
+    waitReady();
     String s = code.toString();
     int len = s.length();
     String sqlFormat = "select distinct substr(hz,%d) from %s where hz match '^%s*' and length(hz) > %d limit 100";
-    return query(String.format(sqlFormat, len + 1, table, s, len), null);
+    List<String[]> predicted = new ArrayList<String[]>();
+    for (String w: ngrams.predict(s)) predicted.add(new String[]{w}); //常用後續詞優先
+    List<String> tables = getTables(table, null);
+    if (tables.size() == 1 && predicted.isEmpty()) return query(String.format(sqlFormat, len + 1, table, s, len), null);
+    List<Storage.Rows> results = new ArrayList<Storage.Rows>(tables.size());
+    for (String t: tables) results.add(storage.query(String.format(sqlFormat, len + 1, t, s, len), null));
+    return SQLiteStorage.toCursor(MergedRows.merge(predicted, results), new String[]{"hz"});
   }
   
   /**
@@ -391,24 +554,25 @@ public class Dictionary {
         return cursor;
   }
 
+  /**
+   * Returns a converter of romanized text with the current schema, for
+   * converting whole documents instead of keystrokes.
+   */
+  public BatchConverter getBatchConverter(int threads) {
+    waitReady();
+    final String dict = table;
+    return new BatchConverter(storage, speller, dict, threads) {
+      @Override
+      protected List<String> getTables(String code) {
+        return Dictionary.this.getTables(dict, code);
+      }
+    };
+  }
+
   public String toSC(String text) {
     if (!isSC()) return text;
-    Cursor cursor =  query("select s from opencc where t match ?", new String[]{text});
-    if (cursor != null) {
-      String s = cursor.getString(0).split(" ")[0];
-      cursor.close();
-      return s;
-    }
-    StringBuilder s = new StringBuilder();
-    for (String i: text.split("\\B")) {
-      cursor = query("select s from opencc where t match ?", new String[]{i});
-      if (cursor == null) s.append(i);
-      else {
-        s.append(cursor.getString(0).split(" ")[0]);
-        cursor.close();
-      }
-    }
-    return s.toString();
+    waitReady();
+    return converter.toSC(text);
   }
 
   public boolean isCommitPy() {
@@ -424,23 +588,32 @@ public class Dictionary {
   }
 
   public boolean hasDelimiter() {
-      return (delimiter != null) && delimiter.length() > 0;
+      return speller.hasDelimiter();
   }
 
   public boolean isDelimiter(CharSequence s) {
-      return hasDelimiter() && s.length() > 0 && s.charAt(0) != ' ' && delimiter.contains(s);
+      return speller.isDelimiter(s);
+  }
+
+  public Punctuator getPunctuator() {
+    return punctuator;
   }
 
   public String getDelimiter() {
-    return hasDelimiter() ? delimiter.substring(0, 1) : "";
+    return speller.getDelimiter();
+  }
+
+  /** Returns whether the schema corrects touches that miss a key. */
+  public boolean isCorrectTypo() {
+    return Boolean.TRUE.equals(getValue("trime", "correct_typo"));
   }
 
   public boolean isKeyboardPreview() {
       return preferences.getBoolean("pref_keyboard_preview", true);
   }
 
-  private String getSingle() {
-    return preferences.getBoolean("pref_single", false) ? " and length(hz) == 1" : "";
+  private boolean isSingle() {
+    return preferences.getBoolean("pref_single", false);
   }
 
   private boolean isAssociation() {
@@ -463,7 +636,7 @@ public class Dictionary {
     SharedPreferences.Editor edit = preferences.edit();
     edit.putInt("_id", id);
     boolean ret = edit.commit();
-    if (ret) initSchema();
+    if (ret && mDatabase != null) initSchema();
     return ret;
   }
 
@@ -17,12 +17,25 @@
 package com.osfans.trime;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 import android.content.Context;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 
 import android.text.format.Time;
 import android.util.Log;
@@ -35,18 +48,28 @@ import android.support.v4.app.NotificationCompat;
 
 import org.yaml.snakeyaml.Yaml;
 
+import com.osfans.trime.engine.ImportPipeline;
+import com.osfans.trime.engine.LineReader;
+
 public class DictionaryHelper extends SQLiteOpenHelper {
 
   private final Context mContext;
   private SQLiteDatabase mDatabase;
+  private SQLiteDatabase mWriter;
+  private static final String TAG = "DictionaryHelper";
   private static final String DB_NAME = "trime.db";
   private static final File sd = new File("/sdcard");
   private static final File dbFile = new File("/data/data/com.osfans.trime/databases/", DB_NAME);
-  private static final int DB_VER = 2;
-  private static final int BLK_SIZE = 1024;
-  private static final String fs = "...";
-  private static final String comment = "#";
-  private static final String newline = "\n";
+  private static final int DB_VER = 3;
+  private static final String FTS_PREFIX = "prefix=\"1,2,3\"";
+  private static final Pattern FTS3_ARGS = Pattern.compile("(?is).*\\busing\\s+fts3\\s*(?:\\((.*)\\))?\\s*");
+  private static Boolean fts4;
+  private static final int BLK_SIZE = 1 << 16;
+  private static final int BATCH_SIZE = 5000;
+  static final String STAGE_SUFFIX = "_stage";
+  private static final String CHECKPOINT = "import_checkpoint";
+  static final String IMPORTED = "imported";
+  private static final String DELTA_SUFFIX = ".delta";
 
   NotificationManager mNotifyManager;
   NotificationCompat.Builder mBuilder;
@@ -57,16 +80,187 @@ public class DictionaryHelper extends SQLiteOpenHelper {
     super(context, DB_NAME, null, DB_VER);
     mContext = context;
     initProgress();
-    loadAssetsDB();
+    AssetInstaller.start(context, DB_NAME, dbFile, new AssetInstaller.Listener() {
+      @Override
+      public void onProgress(long done, long total) {
+        if (total <= 0) return;
+        mBuilder.setContentTitle(mContext.getString(R.string.initdb_message))
+          .setProgress(100, (int)(done * 100 / total), false)
+          .setContentText(String.format("%d / 100", done * 100 / total));
+        mNotifyManager.notify(notify_id, mBuilder.build());
+      }
+
+      @Override
+      public void onReady() {
+        mNotifyManager.cancel(notify_id);
+        reloadDictionary();
+      }
+    });
+  }
+
+  /** Waits for the asset database to be installed before opening it. */
+  @Override
+  public SQLiteDatabase getReadableDatabase() {
+    AssetInstaller.await();
+    return super.getReadableDatabase();
+  }
+
+  @Override
+  public SQLiteDatabase getWritableDatabase() {
+    AssetInstaller.await();
+    return super.getWritableDatabase();
+  }
+
+  static boolean isReady() {
+    return AssetInstaller.isReady();
+  }
+
+  static boolean isWalSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+  }
+
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    if (isWalSupported() && !db.isReadOnly()) db.enableWriteAheadLogging(); //寫入時不阻塞查詢
+  }
+
+  /**
+   * Returns the connection for imports, learning and maintenance. With
+   * write-ahead logging it is a connection of its own, so that a long
+   * write never stalls the lookups on {@link #getReadableDatabase()};
+   * otherwise it is the shared connection.
+   * <p>The own connection is opened directly rather than through this
+   * helper, so it skips onCreate, onUpgrade and onOpen: those have already
+   * run on the shared connection returned by {@link #getWritableDatabase()},
+   * which is why write-ahead logging is enabled here by hand. A failed
+   * import closes it with {@link #closeWriter()}, and the next call opens a
+   * fresh one.
+   */
+  synchronized SQLiteDatabase getWriteDatabase() {
+    SQLiteDatabase db = getWritableDatabase();
+    if (!isWalSupported()) return db;
+    if (mWriter == null || !mWriter.isOpen()) {
+      mWriter = SQLiteDatabase.openDatabase(db.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+      mWriter.enableWriteAheadLogging();
+    }
+    return mWriter;
+  }
+
+  private synchronized void closeWriter() {
+    if (mWriter != null) {
+      mWriter.close();
+      mWriter = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closeWriter();
+    super.close();
+  }
+
+  /**
+   * Moves the committed pages from the write-ahead log into the database
+   * file, so that the file alone holds all data.
+   */
+  private void checkpoint() {
+    if (!isWalSupported()) return;
+    Cursor cursor = getWriteDatabase().rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+    cursor.moveToFirst();
+    cursor.close();
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 3) upgradeFts(db);
   }
 
   @Override
   public void onCreate(SQLiteDatabase db) {
     // mDatabase = db;
+    upgradeFts(db); //碼表數據庫無版本號
+  }
+
+  /**
+   * Returns whether SQLite has fts4 with prefix indexes, which came with
+   * SQLite 3.7.7 (API 16); older devices keep fts3.
+   */
+  static synchronized boolean isFts4Supported(SQLiteDatabase db) {
+    if (fts4 == null) {
+      Cursor cursor = db.rawQuery("select sqlite_version()", null);
+      String version = cursor.moveToFirst() ? cursor.getString(0) : "";
+      cursor.close();
+      int v = 0;
+      String[] ss = version.split("\\.");
+      for (int i = 0; i < 3; i++) {
+        int n = 0;
+        try {
+          if (i < ss.length) n = Integer.parseInt(ss[i]);
+        } catch (NumberFormatException e) {
+        }
+        v = v * 1000 + n;
+      }
+      fts4 = v >= 3007007;
+    }
+    return fts4;
+  }
+
+  /**
+   * Returns the full-text module for a dictionary table with the given
+   * columns: fts4 with prefix indexes where supported, or else fts3.
+   */
+  static String getFtsModule(SQLiteDatabase db, String columns) {
+    if (!isFts4Supported(db)) return String.format("fts3(%s)", columns);
+    return String.format("fts4(%s%s)", columns.length() > 0 ? columns + ", " : "", FTS_PREFIX);
+  }
+
+  /**
+   * Rebuilds every fts3 table as fts4 with prefix indexes, so that prefix
+   * queries read precomputed doclists instead of expanding terms.
+   * Columns, tokenizer and docid order are kept; other tables are untouched.
+   * Without fts4 the tables stay as they are.
+   */
+  private void upgradeFts(SQLiteDatabase db) {
+    if (!isFts4Supported(db)) return;
+    Cursor cursor = db.rawQuery("select name, sql from sqlite_master where type = 'table' and sql like 'CREATE VIRTUAL TABLE % USING fts3%'", null);
+    if (cursor == null) return;
+    String[][] tables = new String[cursor.getCount()][];
+    int n = 0;
+    while (cursor.moveToNext()) tables[n++] = new String[]{cursor.getString(0), cursor.getString(1)};
+    cursor.close();
+
+    for (String[] t: tables) {
+      String table = t[0];
+      Matcher m = FTS3_ARGS.matcher(t[1]);
+      if (!m.matches()) continue;
+      String args = m.group(1) == null ? "" : m.group(1).trim(); //無參數時只有content列
+      String tmp = table + "_fts4";
+      String sql = String.format("CREATE VIRTUAL TABLE %s USING %s", tmp, getFtsModule(db, args));
+
+      cursor = db.rawQuery(String.format("select * from %s limit 0", table), null);
+      String cols = join(cursor.getColumnNames());
+      cursor.close();
+
+      db.execSQL("DROP TABLE IF EXISTS " + tmp);
+      db.execSQL(sql);
+      db.execSQL(String.format("INSERT INTO %s(docid, %s) SELECT docid, %s FROM %s", tmp, cols, cols, table));
+      db.execSQL("DROP TABLE " + table);
+      db.execSQL(String.format("ALTER TABLE %s RENAME TO %s", tmp, table));
+      optimize(db, table);
+    }
+  }
+
+  private static void optimize(SQLiteDatabase db, String table) {
+    db.execSQL(String.format("INSERT INTO %s(%s) VALUES('optimize')", table, table));
+  }
+
+  private static String join(String[] ss) {
+    StringBuilder sb = new StringBuilder();
+    for (String s: ss) {
+      if (sb.length() > 0) sb.append(",");
+      sb.append(s);
+    }
+    return sb.toString();
   }
 
   private void initProgress() {
@@ -79,21 +273,10 @@ public class DictionaryHelper extends SQLiteOpenHelper {
       .setSmallIcon(R.drawable.smallicon);
   }
 
-  private void loadAssetsDB() {
-    if (dbFile.exists()) return;
-    try {
-      dbFile.getParentFile().mkdir();
-      mBuilder.setContentTitle(mContext.getString(R.string.initdb_message));
-      copyDatabase(mContext.getAssets().open(DB_NAME), null);
-    } catch (IOException e) {
-      throw new RuntimeException("Error creating source database", e);
-    }
-  }
-
   static String[] getImportNames() {
     FilenameFilter ff = new FilenameFilter(){
       public boolean accept(File dir, String fn){
-        return fn.endsWith(".db") || fn.endsWith(".schema.yaml") || fn.endsWith(".dict.yaml");
+        return fn.endsWith(".db") || fn.endsWith(".schema.yaml") || fn.endsWith(".dict.yaml") || fn.endsWith(".ngram.txt") || fn.endsWith(DELTA_SUFFIX);
       }
     };
     return sd.list(ff);
@@ -105,16 +288,65 @@ public class DictionaryHelper extends SQLiteOpenHelper {
     return String.format("trime_%s.db", t.format2445());
   }
 
+  static String getDeltaExportName() {
+    Time t = new Time();
+    t.setToNow();
+    return String.format("trime_%s%s", t.format2445(), DELTA_SUFFIX);
+  }
+
+  /**
+   * Writes only the user's data, the difference from the bundled database,
+   * comparing against a temporary copy of the asset.
+   */
+  private boolean exportDelta(String s) {
+    boolean success = false;
+    File asset = new File(mContext.getCacheDir(), DB_NAME);
+    SQLiteDatabase db = null;
+    try {
+      AssetInstaller.extract(mContext, DB_NAME, asset);
+      db = SQLiteDatabase.openDatabase(asset.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+      OutputStream os = new FileOutputStream(new File(sd, s));
+      try {
+        DeltaBackup.export(mContext, getReadableDatabase(), db, os);
+      } finally {
+        os.close();
+      }
+      success = true;
+    } catch (Exception e) {
+      Log.e(TAG, "Error export delta", e);
+    } finally {
+      if (db != null) db.close();
+      asset.delete();
+    }
+    return success;
+  }
+
+  private boolean importDelta(InputStream is) {
+    boolean success = false;
+    try {
+      DeltaBackup.restore(mContext, getWriteDatabase(), is);
+      success = true;
+    } catch (Exception e) {
+      Log.e(TAG, "Error import delta", e);
+    } finally {
+      if (!success) closeWriter();
+    }
+    return success;
+  }
+
   private boolean copyDatabase(InputStream is, String s) {
     boolean success = false;
     mNotifyManager.notify(notify_id, mBuilder.build());
     try {
-      if (is == null ) is = new FileInputStream(dbFile);
+      if (is == null ) {
+        checkpoint();
+        is = new FileInputStream(dbFile);
+      }
 
+      File tmp = new File(dbFile.getPath() + ".tmp");
       OutputStream os = null;
       if (s == null) {
-        close();
-        os = new FileOutputStream(dbFile);
+        os = new FileOutputStream(tmp);
       } else {
         os = new FileOutputStream(new File(sd, s));
       }
@@ -122,12 +354,12 @@ public class DictionaryHelper extends SQLiteOpenHelper {
       int max = is.available();
       int count = 0;
       int progress = 0;
+      int n;
       byte[] buffer = new byte[BLK_SIZE];
-      while (is.read(buffer) > 0) {
-        os.write(buffer);
-        count++;
-        if ((count % 100) == 0) {
-          progress = count * BLK_SIZE;
+      while ((n = is.read(buffer)) > 0) {
+        os.write(buffer, 0, n);
+        progress += n;
+        if ((++count % 4) == 0 && max > 0) {
           mBuilder.setProgress(max, progress, false)
             .setContentText(String.format("%d / 100", progress * 100 / max));
           mNotifyManager.notify(notify_id, mBuilder.build());
@@ -136,18 +368,48 @@ public class DictionaryHelper extends SQLiteOpenHelper {
       os.flush();
       os.close();
       is.close();
+      if (s == null) swapDatabase(tmp);
       success = true;
     } catch (Exception e) {
-      throw new RuntimeException("Error copy database", e);
+      Log.e(TAG, "Error copy database", e);
     } finally {
       mNotifyManager.cancel(notify_id);
     }
     return success;
   }
 
+  /**
+   * Replaces the database file with an imported copy. The swap runs on the
+   * main thread, where the lookups run: it closes every connection, so no
+   * write-ahead log of the old file is left to be applied to the new one,
+   * renames the file, and has the input method reopen it at once, so no
+   * lookup meets a closed connection. Writers holding the helper lock,
+   * such as the phrase learner, finish first. Waits for the swap.
+   */
+  private void swapDatabase(final File tmp) throws Exception {
+    FutureTask<Void> swap = new FutureTask<Void>(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        synchronized (DictionaryHelper.this) {
+          close();
+          AssetInstaller.replace(tmp, dbFile);
+        }
+        TRIME ime = TRIME.getService();
+        if (ime != null) ime.initDictionary();
+        return null;
+      }
+    });
+    new Handler(Looper.getMainLooper()).post(swap);
+    try {
+      swap.get();
+    } catch (ExecutionException e) {
+      throw (Exception)e.getCause();
+    }
+  }
+
   private boolean importSchema(InputStream is) {
     boolean success = false;
-    SQLiteDatabase db =  getWritableDatabase();
+    SQLiteDatabase db =  getWriteDatabase();
     db.beginTransaction();
     try {
       Yaml yaml = new Yaml();
@@ -165,69 +427,303 @@ public class DictionaryHelper extends SQLiteOpenHelper {
 
       long r = db.update("schema", initialValues, "schema_id = ?", new String[] {schema_id});
       if (r == 0) r = db.insert("schema", null, initialValues);
+      setImported(db, "schema", schema_id);
       db.setTransactionSuccessful();
       success = true;
     } catch (Exception e) {
-      throw new RuntimeException("Error import schema", e);
+      Log.e(TAG, "Error import schema", e);
     } finally {
       db.endTransaction();
+      if (!success) closeWriter();
     }
     return success;
   }
 
-  private boolean importDict(InputStream is) {
+  /**
+   * Imports a .dict.yaml into staging tables through an
+   * {@link ImportPipeline}, parsing on all cores while this thread binds
+   * the rows into compiled inserts, then swaps the staging tables in.
+   * Every commit also records the byte offset reached in the file, so
+   * importing the same file again after the process was killed resumes
+   * there instead of starting over. Without write-ahead logging the lookups
+   * share this connection, so every batch also yields to a waiting lookup,
+   * committing early with its checkpoint.
+   */
+  private boolean importDict(File file, InputStream is) {
     boolean success = false;
-    SQLiteDatabase db =  getWritableDatabase();
-    db.beginTransaction();
+    final SQLiteDatabase db =  getWriteDatabase();
     try {
-      String line;
-      StringBuilder content = new StringBuilder();
-      InputStreamReader ir = new InputStreamReader(is);
-      BufferedReader br = new BufferedReader(ir);
-      while ((line = br.readLine()) != null && !line.contentEquals(fs)) {
-        content.append(line);
-        content.append(newline);
-      }
+      final String name = file.getName();
+      final long max = file.length();
+      LineReader lr = new LineReader(is);
+      String header = ImportPipeline.readHeader(lr);
+      final long hash = getFingerprint(file, header);
 
       Yaml yaml = new Yaml();
-      Map<String,Object> y = (Map<String,Object>)(yaml.load(content.toString()));
-      String table = (String)y.get("name");
+      Map<String,Object> y = (Map<String,Object>)(yaml.load(header));
+      final String table = (String)y.get("name");
+      final boolean shard = Boolean.TRUE.equals(y.get("shard"));
+      final String stage = table + STAGE_SUFFIX;
+      final Map<String, String> shards = new LinkedHashMap<String, String>();
+      final Map<String, SQLiteStatement> inserts = new HashMap<String, SQLiteStatement>();
+      dropStaleImports(db, table, name);
+      final long[] checkpoint = getCheckpoint(db, table, name, hash);
 
-      db.execSQL("DROP TABLE IF EXISTS " + table);
-      db.execSQL(String.format("CREATE VIRTUAL TABLE %s USING fts3(hz, py)", table));
-
-      ContentValues initialValues = new ContentValues(2);
-      int max = is.available();
-      int progress = 0;
-      int count = 0;
-      while ((line = br.readLine()) != null) {
-        if (line.startsWith(comment)) continue;
-        String[] s = line.split("\t");
-        if (s.length < 2) continue;
-        initialValues.put("hz", s[0]);
-        initialValues.put("py", s[1]);
-        db.insert(table, null, initialValues);
-        initialValues.clear();
-        count++;
-        if ((count % 1000) == 0) {
-          progress = max - is.available();
-          mBuilder.setProgress(max, progress, false)
-            .setContentText(String.format("%d / 100", progress * 100 / max));
-          mNotifyManager.notify(notify_id, mBuilder.build());
+      db.beginTransaction();
+      try {
+        if (checkpoint == null) {
+          dropDict(db, stage); //上次未完成的導入
+          if (!shard) createDict(db, stage);
+          setCheckpoint(db, table, name, hash, lr.getOffset(), 0);
+        } else {
+          Map<String, String> m = getShards(db, stage);
+          if (m != null) shards.putAll(m);
+          lr.skip(checkpoint[0] - lr.getOffset()); //從斷點繼續
         }
+
+        final long base = (checkpoint == null) ? 0 : checkpoint[1];
+        final boolean wal = isWalSupported();
+        long count = new ImportPipeline(Runtime.getRuntime().availableProcessors()).run(lr, new ImportPipeline.Sink() {
+          long count, committed, offset;
+
+          @Override
+          public void write(String hz, String py) {
+            String t = shard ? getShard(db, stage, py, shards) : stage;
+            SQLiteStatement insert = inserts.get(t);
+            if (insert == null) {
+              insert = db.compileStatement(String.format("INSERT INTO %s(hz, py) VALUES(?, ?)", t));
+              inserts.put(t, insert);
+            }
+            insert.bindString(1, hz);
+            insert.bindString(2, py);
+            insert.executeInsert();
+            count++;
+          }
+
+          @Override
+          public void onBatch(long offset) {
+            this.offset = offset;
+            if (count - committed >= BATCH_SIZE) {
+              setCheckpoint(db, table, name, hash, offset, base + count); //斷點與數據一起提交
+              db.setTransactionSuccessful(); //分批提交，不長時間鎖住數據庫
+              db.endTransaction();
+              db.beginTransaction();
+              committed = count;
+            } else if (!wal) {
+              setCheckpoint(db, table, name, hash, offset, base + count);
+              if (db.yieldIfContendedSafely()) committed = count; //無WAL時與查詢共用連接，有查詢等待就先提交
+            }
+          }
+
+          @Override
+          public void onProgress(long rows) {
+            if (max <= 0) return;
+            mBuilder.setProgress(100, (int)(offset * 100 / max), false)
+              .setContentText(String.format("%d / 100", offset * 100 / max));
+            mNotifyManager.notify(notify_id, mBuilder.build());
+          }
+        });
+        setCheckpoint(db, table, name, hash, lr.getOffset(), base + count);
+        lr.close();
+        db.setTransactionSuccessful();
+      } finally {
+        for (SQLiteStatement insert: inserts.values()) insert.close();
+        db.endTransaction();
       }
-      is.close();
-      db.setTransactionSuccessful();
+      if (shard) {
+        for (String t: shards.values()) optimize(db, t);
+      } else optimize(db, stage);
+      swapDict(db, stage, table, shard ? shards : null);
       success = true;
     } catch (Exception e) {
-      throw new RuntimeException("Error import dict", e);
+      Log.e(TAG, "Error import dict", e);
     } finally {
-      db.endTransaction();
+      if (!success) closeWriter();
       mNotifyManager.cancel(notify_id);
     }
     return success;
   }
 
+  /**
+   * Identifies a version of a dictionary file by its size, modification time
+   * and header, without reading the file again.
+   */
+  private static long getFingerprint(File file, String header) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(header.getBytes("UTF-8"));
+    return crc.getValue() ^ (file.length() << 32) ^ file.lastModified();
+  }
+
+  /**
+   * Drops the staging tables and checkpoints of unfinished imports that can
+   * no longer resume: their file is gone, or it now goes into another
+   * dictionary.
+   */
+  private static void dropStaleImports(SQLiteDatabase db, String table, String file) {
+    createCheckpoint(db);
+    Cursor cursor = db.rawQuery("select dict, file from " + CHECKPOINT, null);
+    Map<String, String> stale = new HashMap<String, String>();
+    while (cursor.moveToNext()) {
+      String dict = cursor.getString(0), f = cursor.getString(1);
+      if (!new File(sd, f).exists() || (f.equals(file) && !dict.equals(table))) stale.put(dict, f);
+    }
+    cursor.close();
+    if (stale.isEmpty()) return;
+    db.beginTransaction();
+    try {
+      for (String dict: stale.keySet()) {
+        dropDict(db, dict + STAGE_SUFFIX);
+        db.delete(CHECKPOINT, "dict = ?", new String[] {dict});
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static void createCheckpoint(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + CHECKPOINT
+      + " (dict TEXT PRIMARY KEY, file TEXT NOT NULL, hash INTEGER NOT NULL, pos INTEGER NOT NULL, total INTEGER NOT NULL)");
+  }
+
+  /**
+   * Returns the byte offset and rows committed by an unfinished import of
+   * the same file into a dictionary, or {@code null} if there is none.
+   */
+  private static long[] getCheckpoint(SQLiteDatabase db, String table, String file, long hash) {
+    Cursor cursor = db.rawQuery("select file, hash, pos, total from " + CHECKPOINT + " where dict = ?", new String[] {table});
+    long[] checkpoint = null;
+    if (cursor.moveToFirst() && cursor.getString(0).equals(file) && cursor.getLong(1) == hash) {
+      checkpoint = new long[] {cursor.getLong(2), cursor.getLong(3)};
+    }
+    cursor.close();
+    return checkpoint;
+  }
+
+  private static void setCheckpoint(SQLiteDatabase db, String table, String file, long hash, long pos, long total) {
+    ContentValues values = new ContentValues(5);
+    values.put("dict", table);
+    values.put("file", file);
+    values.put("hash", hash);
+    values.put("pos", pos);
+    values.put("total", total);
+    db.replace(CHECKPOINT, null, values);
+  }
+
+  private boolean importNgram(InputStream is) {
+    try {
+      BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+      NgramStore.get(mContext).seed(br);
+      br.close();
+      return true;
+    } catch (Exception e) {
+      Log.e(TAG, "Error import ngram", e);
+      return false;
+    }
+  }
+
+  /**
+   * Replaces a dictionary with its fully built staging tables in one short
+   * transaction, so that lookups never see a partly imported dictionary.
+   *
+   * @param shards the staged shards by prefix, or {@code null} if not sharded.
+   */
+  private static void swapDict(SQLiteDatabase db, String stage, String table, Map<String, String> shards) {
+    db.beginTransaction();
+    try {
+      dropDict(db, table);
+      db.delete(CHECKPOINT, "dict = ?", new String[] {table}); //導入完成
+      setImported(db, "dict", table);
+      if (shards == null) {
+        db.execSQL(String.format("ALTER TABLE %s RENAME TO %s", stage, table));
+      } else {
+        for (Map.Entry<String, String> e: shards.entrySet()) {
+          String t = getShardName(table, e.getKey());
+          db.execSQL(String.format("ALTER TABLE %s RENAME TO %s", e.getValue(), t));
+          ContentValues values = new ContentValues(2);
+          values.put("dict", table);
+          values.put("name", t);
+          db.update("shard", values, "name = ?", new String[] {e.getValue()});
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Records an imported schema or dictionary, so that installing a newer
+   * asset database keeps it in place of the bundled one.
+   */
+  private static void setImported(SQLiteDatabase db, String type, String name) {
+    db.execSQL(String.format("CREATE TABLE IF NOT EXISTS %s (type TEXT NOT NULL, name TEXT NOT NULL, PRIMARY KEY (type, name))", IMPORTED));
+    ContentValues values = new ContentValues(2);
+    values.put("type", type);
+    values.put("name", name);
+    db.replace(IMPORTED, null, values);
+  }
+
+  private static void createDict(SQLiteDatabase db, String table) {
+    db.execSQL(String.format("CREATE VIRTUAL TABLE %s USING %s", table, getFtsModule(db, "hz, py")));
+  }
+
+  /**
+   * Drops a dictionary table, or all its shards if it is sharded.
+   */
+  private static void dropDict(SQLiteDatabase db, String table) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS shard (dict TEXT NOT NULL, prefix TEXT NOT NULL, name TEXT NOT NULL)");
+    Map<String, String> shards = getShards(db, table);
+    if (shards != null) {
+      for (String t: shards.values()) db.execSQL("DROP TABLE IF EXISTS " + t);
+    }
+    db.delete("shard", "dict = ?", new String[] {table});
+    db.execSQL("DROP TABLE IF EXISTS " + table);
+  }
+
+  /**
+   * Returns the shard table for a code, creating and registering it when
+   * the first code of its prefix comes.
+   */
+  private static String getShard(SQLiteDatabase db, String table, String code, Map<String, String> shards) {
+    String prefix = code.substring(0, 1);
+    String t = shards.get(prefix);
+    if (t == null) {
+      t = getShardName(table, prefix);
+      createDict(db, t);
+      ContentValues values = new ContentValues(3);
+      values.put("dict", table);
+      values.put("prefix", prefix);
+      values.put("name", t);
+      db.insert("shard", null, values);
+      shards.put(prefix, t);
+    }
+    return t;
+  }
+
+  private static String getShardName(String table, String prefix) {
+    return String.format("%s_%04x", table, (int)prefix.charAt(0));
+  }
+
+  /**
+   * Returns the shard tables of a dictionary by the first letter of their
+   * codes, or {@code null} if the dictionary is not sharded.
+   */
+  static Map<String, String> getShards(SQLiteDatabase db, String table) {
+    Cursor cursor = db.rawQuery("select name from sqlite_master where type = 'table' and name = 'shard'", null);
+    boolean exists = cursor.moveToFirst();
+    cursor.close();
+    if (!exists) return null;
+    cursor = db.rawQuery("select prefix, name from shard where dict = ? order by rowid", new String[] {table});
+    Map<String, String> shards = null;
+    while (cursor.moveToNext()) {
+      if (shards == null) shards = new LinkedHashMap<String, String>();
+      shards.put(cursor.getString(0), cursor.getString(1));
+    }
+    cursor.close();
+    return shards;
+  }
+
   private void toast(String t, String s) {
     mBuilder.setContentTitle(t)
             .setContentText(s)
@@ -235,35 +731,62 @@ public class DictionaryHelper extends SQLiteOpenHelper {
     mNotifyManager.notify(notify_id, mBuilder.build());
   }
 
+  /**
+   * Imports a file from the sdcard on a worker thread, whatever its kind,
+   * so that the caller, often the preference screen, never waits for it.
+   */
   public void importDatabase(final String s) {
-    try {
-      final InputStream is = new FileInputStream(new File(sd, s));
-      mBuilder.setContentTitle(String.format(mContext.getString(R.string.importdb_message), s));
-      if (s.endsWith(".db") || s.endsWith(".schema.yaml")) {
-        boolean success = s.endsWith(".db") ? copyDatabase(is, null) : importSchema(is);
+    mBuilder.setContentTitle(String.format(mContext.getString(R.string.importdb_message), s));
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        boolean success = false;
+        try {
+          success = importFile(s);
+        } catch (IOException e) {
+          Log.e(TAG, "Error import Database", e);
+        }
+        if (success && !s.endsWith(".db")) reloadDictionary(); //替換數據庫時已重新打開
         if (success) toast(mContext.getString(R.string.importdb_success), s);
         else toast(mContext.getString(R.string.importdb_failure), s);
-      } else if (s.endsWith(".dict.yaml")) {
-        new Thread(new Runnable() {
-          @Override
-          public void run() {
-            boolean success = importDict(is);
-            if (success) toast(mContext.getString(R.string.importdb_success), s);
-            else toast(mContext.getString(R.string.importdb_failure), s);
-          }
-        }
-      ).start();
-    }
-    } catch (Exception e) {
-      throw new RuntimeException("Error import Database", e);
-    }
+      }
+    }).start();
+  }
+
+  private boolean importFile(String s) throws IOException {
+    InputStream is = new FileInputStream(new File(sd, s));
+    if (s.endsWith(".db")) return copyDatabase(is, null);
+    if (s.endsWith(".schema.yaml")) return importSchema(is);
+    if (s.endsWith(".dict.yaml")) return importDict(new File(sd, s), is);
+    if (s.endsWith(DELTA_SUFFIX)) return importDelta(is);
+    return importNgram(is);
   }
 
+  /**
+   * Lets the running input method pick up a newly imported dictionary.
+   */
+  private void reloadDictionary() {
+    new Handler(Looper.getMainLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        TRIME ime = TRIME.getService();
+        if (ime != null) ime.initDictionary();
+      }
+    });
+  }
+
+  /** Exports the whole database or a delta on a worker thread. */
   public void exportDatabase(final String s) {
     mBuilder.setContentTitle(mContext.getString(R.string.exportdb_message));
-    boolean success = copyDatabase(null, s);
-    if (success) toast(mContext.getString(R.string.exportdb_success), s);
-    else toast(mContext.getString(R.string.exportdb_failure), null);
+    mNotifyManager.notify(notify_id, mBuilder.setProgress(0, 0, true).build());
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        boolean success = s.endsWith(DELTA_SUFFIX) ? exportDelta(s) : copyDatabase(null, s);
+        if (success) toast(mContext.getString(R.string.exportdb_success), s);
+        else toast(mContext.getString(R.string.exportdb_failure), null);
+      }
+    }).start();
   }
 }
 
@@ -66,6 +66,14 @@ public class ImePreferenceActivity extends PreferenceActivity {
       }
     });
 
+    Preference exportdelta = findPreference("pref_exportdelta");
+    exportdelta.setOnPreferenceClickListener(new OnPreferenceClickListener() {
+      public boolean onPreferenceClick(Preference preference) {
+        exportDatabase(DictionaryHelper.getDeltaExportName());
+        return true;
+      }
+    });
+
     ListPreference candnum = (ListPreference)findPreference("pref_cand_num");
     candnum.setSummary(candnum.getEntry());
     candnum.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
@@ -95,6 +103,15 @@ public class ImePreferenceActivity extends PreferenceActivity {
       }
     });
 
+    ListPreference schemaCacheSize = (ListPreference)findPreference("pref_schema_cache_size");
+    setSchemaCacheSummary(schemaCacheSize, schemaCacheSize.getValue());
+    schemaCacheSize.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        setSchemaCacheSummary(preference, newValue.toString());
+        return true;
+      }
+    });
+
     ListPreference canMaxPhrase = (ListPreference)findPreference("pref_cand_max_phrase");
     canMaxPhrase.setSummary(canMaxPhrase.getEntry());
     canMaxPhrase.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
@@ -107,6 +124,12 @@ public class ImePreferenceActivity extends PreferenceActivity {
     });
   }
 
+  /** Shows the cache size with the memory of each schema and the cache hits of the running input method. */
+  private void setSchemaCacheSummary(Preference preference, String value) {
+    TRIME ime = TRIME.getService();
+    preference.setSummary(ime == null ? value : String.format("%s\n%s", value, ime.getSchemaCacheStats()));
+  }
+
   private void showLicenseDialog() {
     View licenseView = View.inflate(this, R.layout.licensing, null);
     WebView webView = (WebView) licenseView.findViewById(R.id.license_view);
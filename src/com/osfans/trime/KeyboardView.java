@@ -101,6 +101,15 @@ public class KeyboardView extends View implements View.OnClickListener {
          * @param text the sequence of characters to be displayed.
          */
         void onText(CharSequence text);
+
+        /**
+         * Sends a sequence of characters from a touched key to the listener.
+         * @param text the sequence of characters to be displayed.
+         * @param keyCodes the codes of the touched key and its adjacent keys,
+         * nearest first. These are useful to correct for accidental presses
+         * of a key adjacent to the intended key.
+         */
+        void onText(CharSequence text, int[] keyCodes);
         
         /**
          * Called when the user quickly moves the finger from right to left.
@@ -766,7 +775,10 @@ public class KeyboardView extends View implements View.OnClickListener {
         if (index != NOT_A_KEY && index < mKeys.length) {
             final Key key = mKeys[index];
             if (key.text != null) {
-                mKeyboardActionListener.onText(key.text);
+                int[] codes = new int[MAX_NEARBY_KEYS];
+                Arrays.fill(codes, NOT_A_KEY);
+                getKeyIndices(x, y, codes);
+                mKeyboardActionListener.onText(key.text, codes);
                 mKeyboardActionListener.onRelease(NOT_A_KEY);
             } else {
                 int code = key.codes[0];
@@ -988,6 +1000,11 @@ public class KeyboardView extends View implements View.OnClickListener {
                         mKeyboardActionListener.onText(text);
                         dismissPopupKeyboard();
                     }
+
+                    public void onText(CharSequence text, int[] keyCodes) {
+                        mKeyboardActionListener.onText(text, keyCodes);
+                        dismissPopupKeyboard();
+                    }
                     
                     public void swipeLeft() { }
                     public void swipeRight() { }
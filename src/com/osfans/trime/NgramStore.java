@@ -0,0 +1,270 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts which words follow which in the user's commits, for next-word
+ * prediction. The store is a fixed-size hash table in a memory-mapped
+ * file: each slot holds the hash of a context word and its most frequent
+ * continuations, ranked, with one-byte counts that are halved when one
+ * of them saturates. A full neighbourhood evicts its least used slot, so
+ * the size never grows and every operation costs a few probes.
+ */
+public class NgramStore {
+  private static final String TAG = "NgramStore";
+  static final String FILE_NAME = "ngram.bin";
+  private static final int MAGIC = 0x6e677231; //ngr1
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOTS = 8192;
+  private static final int PROBES = 4;
+  private static final int WAYS = 4;
+  private static final int MAX_WORD = 4;
+  private static final int MAX_COUNT = 255;
+  private static final int WAY_SIZE = MAX_WORD * 2 + 1;
+  private static final int SLOT_SIZE = 8 + WAYS * WAY_SIZE;
+  private static final int FILE_SIZE = HEADER_SIZE + SLOTS * SLOT_SIZE;
+
+  private static NgramStore self;
+  private final MappedByteBuffer buf;
+
+  private NgramStore(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    boolean valid = (raf.length() == FILE_SIZE) && raf.readInt() == MAGIC;
+    if (!valid) {
+      raf.setLength(0); //舊格式或損壞時重建
+      raf.setLength(FILE_SIZE);
+      raf.seek(0);
+      raf.writeInt(MAGIC);
+    }
+    buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+    raf.close();
+  }
+
+  public static synchronized NgramStore get(Context context) {
+    if (self == null) {
+      try {
+        self = new NgramStore(new File(context.getFilesDir(), FILE_NAME));
+      } catch (IOException e) {
+        throw new RuntimeException("Error open ngram store", e);
+      }
+    }
+    return self;
+  }
+
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L; //FNV-1a
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h == 0 ? 1 : h;
+  }
+
+  private static String getContext(String s) {
+    return s.length() > MAX_WORD ? s.substring(s.length() - MAX_WORD) : s;
+  }
+
+  private static int getSlot(long h, int probe) {
+    return ((int)(h ^ (h >>> 32)) + probe) & (SLOTS - 1);
+  }
+
+  private static int getOffset(int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private int getCount(int offset, int way) {
+    return buf.get(offset + 8 + way * WAY_SIZE + MAX_WORD * 2) & 0xff;
+  }
+
+  private void setCount(int offset, int way, int count) {
+    buf.put(offset + 8 + way * WAY_SIZE + MAX_WORD * 2, (byte)count);
+  }
+
+  private String getWord(int offset, int way) {
+    StringBuilder sb = new StringBuilder(MAX_WORD);
+    int p = offset + 8 + way * WAY_SIZE;
+    for (int i = 0; i < MAX_WORD; i++) {
+      char c = buf.getChar(p + i * 2);
+      if (c == 0) break;
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private void setWord(int offset, int way, String word) {
+    int p = offset + 8 + way * WAY_SIZE;
+    for (int i = 0; i < MAX_WORD; i++) buf.putChar(p + i * 2, i < word.length() ? word.charAt(i) : 0);
+  }
+
+  private void swap(int offset, int a, int b) {
+    byte[] wa = new byte[WAY_SIZE], wb = new byte[WAY_SIZE];
+    for (int i = 0; i < WAY_SIZE; i++) {
+      wa[i] = buf.get(offset + 8 + a * WAY_SIZE + i);
+      wb[i] = buf.get(offset + 8 + b * WAY_SIZE + i);
+    }
+    for (int i = 0; i < WAY_SIZE; i++) {
+      buf.put(offset + 8 + a * WAY_SIZE + i, wb[i]);
+      buf.put(offset + 8 + b * WAY_SIZE + i, wa[i]);
+    }
+  }
+
+  /** Returns the offset of the slot holding a context, or -1. */
+  private int find(long h) {
+    for (int i = 0; i < PROBES; i++) {
+      int offset = getOffset(getSlot(h, i));
+      long key = buf.getLong(offset);
+      if (key == h) return offset;
+      if (key == 0) break;
+    }
+    return -1;
+  }
+
+  /** Returns the slot of a context, taking an empty or the least used one. */
+  private int claim(long h) {
+    int victim = -1, min = Integer.MAX_VALUE;
+    for (int i = 0; i < PROBES; i++) {
+      int offset = getOffset(getSlot(h, i));
+      long key = buf.getLong(offset);
+      if (key == h) return offset;
+      int weight = 0;
+      if (key != 0) {
+        for (int j = 0; j < WAYS; j++) weight += getCount(offset, j);
+      }
+      if (weight < min) {
+        min = weight;
+        victim = offset;
+      }
+      if (key == 0) break;
+    }
+    for (int i = 0; i < SLOT_SIZE; i++) buf.put(victim + i, (byte)0);
+    buf.putLong(victim, h);
+    return victim;
+  }
+
+  /**
+   * Counts {@code n} occurrences of {@code word} following {@code context}.
+   */
+  public synchronized void add(String context, String word, int n) {
+    if (context.length() == 0 || word.length() == 0 || word.length() > MAX_WORD || n <= 0) return;
+    int offset = claim(hash(getContext(context)));
+    int way = WAYS - 1;
+    for (int i = 0; i < WAYS; i++) {
+      if (getCount(offset, i) > 0 && getWord(offset, i).equals(word)) {
+        way = i;
+        break;
+      }
+    }
+    if (getCount(offset, way) == 0 || !getWord(offset, way).equals(word)) { //替換最少用的
+      setWord(offset, way, word);
+      setCount(offset, way, 0);
+    }
+    int count = getCount(offset, way) + n;
+    if (count > MAX_COUNT) {
+      for (int i = 0; i < WAYS; i++) setCount(offset, i, getCount(offset, i) / 2);
+      count = Math.min(count / 2, MAX_COUNT);
+    }
+    setCount(offset, way, count);
+    while (way > 0 && getCount(offset, way - 1) < count) { //保持按次數排序
+      swap(offset, way - 1, way);
+      way--;
+    }
+  }
+
+  /**
+   * Returns the words that followed a context, most frequent first.
+   */
+  public synchronized List<String> predict(String context) {
+    List<String> words = new ArrayList<String>(WAYS);
+    if (context.length() == 0) return words;
+    int offset = find(hash(getContext(context)));
+    if (offset < 0) return words;
+    for (int i = 0; i < WAYS && getCount(offset, i) > 0; i++) words.add(getWord(offset, i));
+    return words;
+  }
+
+  /** Writes the size and the whole table of the store. */
+  public synchronized void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(FILE_SIZE);
+    byte[] b = new byte[SLOT_SIZE * 64];
+    for (int p = 0; p < FILE_SIZE; p += b.length) {
+      int n = Math.min(b.length, FILE_SIZE - p);
+      for (int i = 0; i < n; i++) b[i] = buf.get(p + i);
+      out.write(b, 0, n);
+    }
+  }
+
+  /**
+   * Replaces the table with one written by {@link #writeTo}, keeping the
+   * current one if the format differs.
+   */
+  public synchronized void readFrom(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n != FILE_SIZE) {
+      Log.w(TAG, "Skip ngram store of another size");
+      DeltaBackup.skip(in, n);
+      return;
+    }
+    byte[] b = new byte[n];
+    in.readFully(b);
+    if ((((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff)) != MAGIC) {
+      Log.w(TAG, "Skip ngram store of another format");
+      return;
+    }
+    for (int i = 0; i < n; i++) buf.put(i, b[i]);
+    buf.force();
+  }
+
+  /**
+   * Seeds the store from lines of {@code context<TAB>word<TAB>count}.
+   *
+   * @return the number of lines read.
+   */
+  public int seed(BufferedReader br) throws IOException {
+    String line;
+    int count = 0;
+    while ((line = br.readLine()) != null) {
+      if (line.startsWith("#")) continue;
+      String[] s = line.split("\t");
+      if (s.length < 2) continue;
+      int n = 1;
+      if (s.length > 2) {
+        try {
+          n = Integer.parseInt(s[2]);
+        } catch (NumberFormatException e) {
+          Log.w(TAG, String.format("Bad count: %s", line));
+        }
+      }
+      add(s[0], s[1], Math.min(n, MAX_COUNT));
+      count++;
+    }
+    return count;
+  }
+}
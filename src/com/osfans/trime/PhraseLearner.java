@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Learns phrases from single characters picked one after another, so that
+ * typing the same syllables again offers the whole phrase.
+ * Learned phrases are visible at once from memory; they are appended to a
+ * journal in the background, which is compacted into the user dictionary
+ * table {@code <dict>_user} from time to time.
+ */
+public class PhraseLearner {
+  private static final String TAG = "PhraseLearner";
+  private static final String JOURNAL = "learned.txt";
+  private static final String USER_SUFFIX = "_user";
+  private static final int MAX_PHRASE_LENGTH = 8;
+  private static final int COMPACT_SIZE = 64;
+
+  private final DictionaryHelper mHelper;
+  private final File journal;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+  private int journalSize;
+
+  private String table;
+  private final Object lock = new Object();
+  private Map<String, List<String>> phrases = new HashMap<String, List<String>>();
+  private int generation;
+  private final StringBuilder pendingWord = new StringBuilder();
+  private final List<String> pendingCode = new ArrayList<String>();
+
+  public PhraseLearner(Context context, DictionaryHelper helper) {
+    mHelper = helper;
+    journal = getJournal(context);
+  }
+
+  static File getJournal(Context context) {
+    return new File(context.getFilesDir(), JOURNAL);
+  }
+
+  /**
+   * Switches to a dictionary. Its learned phrases are loaded in the
+   * background by {@link #load}, and phrases learned in the meantime are
+   * visible at once.
+   */
+  public void setDictionary(String table) {
+    if (table == null || table.equals(this.table)) return;
+    flush();
+    this.table = table;
+    final String dict = table;
+    final int g;
+    synchronized (lock) {
+      phrases = new HashMap<String, List<String>>();
+      g = ++generation;
+    }
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        load(dict, g);
+      }
+    });
+  }
+
+  /**
+   * Forgets the loaded phrases, so that the next {@link #setDictionary}
+   * loads them again, even for the same dictionary. Needed after the
+   * database or the journal was replaced by an import or a restore.
+   */
+  public void reload() {
+    flush();
+    table = null;
+  }
+
+  /**
+   * Loads the learned phrases of a dictionary from the user dictionary
+   * table and the journal. It runs on the writer thread between appends
+   * and compactions, so a compaction cannot move lines between the two
+   * reads, and the input thread never waits for it. Phrases learned while
+   * loading stay ahead of the loaded ones.
+   */
+  private void load(String dict, int g) {
+    Map<String, List<String>> loaded = new HashMap<String, List<String>>();
+    synchronized (journal) {
+      synchronized (mHelper) { //替換數據庫時不關閉正在讀的連接
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        if (hasTable(db, dict + USER_SUFFIX)) {
+          Cursor cursor = db.rawQuery(String.format("select hz, py from %s order by rowid", dict + USER_SUFFIX), null);
+          while (cursor.moveToNext()) put(loaded, cursor.getString(0), cursor.getString(1));
+          cursor.close();
+        }
+      }
+      for (String[] s: readJournal()) {
+        if (s[0].equals(dict)) put(loaded, s[1], s[2]);
+      }
+    }
+    synchronized (lock) {
+      if (g != generation) return; //已切換到別的詞典
+      for (Map.Entry<String, List<String>> e: phrases.entrySet()) {
+        List<String> words = e.getValue();
+        for (int i = words.size() - 1; i >= 0; i--) put(loaded, words.get(i), e.getKey());
+      }
+      phrases = loaded;
+    }
+  }
+
+  /**
+   * Adds a committed single character with the code it was typed with.
+   */
+  public void add(String word, String code) {
+    if (pendingCode.size() >= MAX_PHRASE_LENGTH) flush();
+    pendingWord.append(word);
+    pendingCode.add(code);
+  }
+
+  /**
+   * Ends the current run of characters, learning it if it makes a phrase.
+   */
+  public void flush() {
+    if (pendingCode.size() > 1) {
+      StringBuilder sb = new StringBuilder();
+      for (String s: pendingCode) {
+        if (sb.length() > 0) sb.append(' ');
+        sb.append(s);
+      }
+      learn(pendingWord.toString(), sb.toString());
+    }
+    pendingWord.setLength(0);
+    pendingCode.clear();
+  }
+
+  /**
+   * Returns the learned phrases of a code, most recent first.
+   */
+  public List<String> getPhrases(String code) {
+    synchronized (lock) {
+      return phrases.get(code);
+    }
+  }
+
+  private static void put(Map<String, List<String>> phrases, String word, String code) {
+    List<String> words = phrases.get(code);
+    if (words == null) {
+      words = new ArrayList<String>(2);
+      phrases.put(code, words);
+    }
+    words.remove(word);
+    words.add(0, word);
+  }
+
+  private void learn(final String word, final String code) {
+    synchronized (lock) {
+      put(phrases, word, code);
+    }
+    final String dict = table;
+    writer.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (journal) {
+          append(dict, word, code);
+          if (++journalSize >= COMPACT_SIZE) compact();
+        }
+      }
+    });
+  }
+
+  private void append(String dict, String word, String code) {
+    try {
+      Writer w = new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+      w.write(String.format("%s\t%s\t%s\n", dict, word, code));
+      w.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Error append journal", e);
+    }
+  }
+
+  private List<String[]> readJournal() {
+    List<String[]> lines = new ArrayList<String[]>();
+    if (!journal.exists()) return lines;
+    try {
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] s = line.split("\t");
+        if (s.length == 3) lines.add(s);
+      }
+      br.close();
+    } catch (IOException e) {
+      Log.w(TAG, "Error read journal", e);
+    }
+    journalSize = lines.size();
+    return lines;
+  }
+
+  /**
+   * Moves the journal into the user dictionary tables. Called with the
+   * journal locked; holds the helper while writing, so a database swap
+   * waits for it.
+   */
+  private void compact() {
+    List<String[]> lines = readJournal();
+    if (lines.isEmpty()) return;
+    synchronized (mHelper) { //替換數據庫時等寫入完成
+      SQLiteDatabase db = mHelper.getWriteDatabase();
+      db.beginTransaction();
+      try {
+        ContentValues values = new ContentValues(2);
+        for (String[] s: lines) {
+          String t = s[0] + USER_SUFFIX;
+          db.execSQL(String.format("CREATE VIRTUAL TABLE IF NOT EXISTS %s USING %s", t, DictionaryHelper.getFtsModule(db, "hz, py")));
+          db.delete(t, "hz = ? and py = ?", new String[] {s[1], s[2]}); //重排到最近
+          values.put("hz", s[1]);
+          values.put("py", s[2]);
+          db.insert(t, null, values);
+          values.clear();
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+    journal.delete();
+    journalSize = 0;
+  }
+
+  private static boolean hasTable(SQLiteDatabase db, String table) {
+    Cursor cursor = db.rawQuery("select name from sqlite_master where type = 'table' and name = ?", new String[] {table});
+    boolean exists = cursor.moveToFirst();
+    cursor.close();
+    return exists;
+  }
+}
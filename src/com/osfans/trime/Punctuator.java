@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps ASCII punctuation keys to the texts of a punctuator table such as
+ * {@code punctuator/half_shape}, indexed by character. A key may commit a
+ * text, cycle through a list of texts when pressed repeatedly, or
+ * alternate between the two texts of a pair.
+ */
+public class Punctuator {
+  private static final int SIZE = 128;
+
+  private final String[][] texts = new String[SIZE][];
+  private final boolean[] pairs = new boolean[SIZE];
+  private final int[] index = new int[SIZE];
+  private int lastKey;
+
+  /**
+   * Compiles a punctuator table, whose values are a text, a list of texts,
+   * or a map with a {@code commit} text or a {@code pair} of texts.
+   */
+  public static Punctuator compile(Map<String,Object> m) {
+    Punctuator p = new Punctuator();
+    if (m == null) return p;
+    for (Map.Entry<String, Object> e: m.entrySet()) {
+      String k = e.getKey();
+      if (k.length() != 1 || k.charAt(0) >= SIZE) continue;
+      int c = k.charAt(0);
+      Object o = e.getValue();
+      if (o instanceof Map) {
+        Map<String, Object> v = (Map<String, Object>)o;
+        if (v.containsKey("pair")) {
+          o = v.get("pair");
+          p.pairs[c] = true;
+        } else o = v.get("commit");
+      }
+      if (o instanceof List) {
+        List<Object> l = (List<Object>)o;
+        if (l.isEmpty()) continue;
+        String[] ss = new String[l.size()];
+        for (int i = 0; i < ss.length; i++) ss[i] = String.valueOf(l.get(i));
+        p.texts[c] = ss;
+      } else if (o != null) {
+        p.texts[c] = new String[]{String.valueOf(o)};
+      }
+      if (p.pairs[c] && (p.texts[c] == null || p.texts[c].length != 2)) p.pairs[c] = false;
+    }
+    return p;
+  }
+
+  public boolean has(int c) {
+    return c >= 0 && c < SIZE && texts[c] != null;
+  }
+
+  /**
+   * Returns the text that pressing {@code c} again would replace, or
+   * {@code null} if it would not cycle.
+   */
+  public String getCycleText(int c) {
+    if (c != lastKey || !has(c) || pairs[c] || texts[c].length < 2) return null;
+    return texts[c][index[c]];
+  }
+
+  /**
+   * Returns the text of a key, moving to the next text of its list if it
+   * was the last key, or to the other text of its pair.
+   */
+  public String punct(int c) {
+    if (!has(c)) return null;
+    String[] ss = texts[c];
+    String s;
+    if (pairs[c]) {
+      s = ss[index[c]];
+      index[c] = 1 - index[c]; //成對標點交替
+    } else {
+      index[c] = (c == lastKey) ? (index[c] + 1) % ss.length : 0;
+      s = ss[index[c]];
+    }
+    lastKey = c;
+    return s;
+  }
+
+  /** Ends the current cycle. */
+  public void reset() {
+    lastKey = 0;
+  }
+}
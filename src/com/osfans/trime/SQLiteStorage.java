@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.osfans.trime.engine.Storage;
+
+/**
+ * Storage of the engine over an Android SQLite database. Its rows are the
+ * query cursors themselves, so they can be shown without copying.
+ */
+public class SQLiteStorage implements Storage {
+  private final SQLiteDatabase db;
+
+  public SQLiteStorage(SQLiteDatabase db) {
+    this.db = db;
+  }
+
+  @Override
+  public Rows query(String sql, String[] args) {
+    Cursor cursor = db.rawQuery(sql, args);
+    if (cursor == null) return null;
+    if (!cursor.moveToFirst()) {
+      cursor.close();
+      return null;
+    }
+    return new CursorRows(cursor);
+  }
+
+  /**
+   * Returns a cursor over rows. Rows from {@link #query} are cursors
+   * already; any other rows are read as the cursor moves.
+   *
+   * @param columns the column names of the rows.
+   * @return the cursor, or {@code null} if {@code rows} is {@code null}.
+   */
+  public static Cursor toCursor(Rows rows, String[] columns) {
+    if (rows == null || rows instanceof CursorRows) return (CursorRows)rows;
+    return new RowsCursor(rows, columns);
+  }
+
+  /**
+   * Returns the rows of a cursor on its first row, such as one from an
+   * in-memory table.
+   *
+   * @return the rows, or {@code null} if {@code cursor} is {@code null}.
+   */
+  public static Rows toRows(Cursor cursor) {
+    return (cursor == null) ? null : new CursorRows(cursor);
+  }
+
+  private static class CursorRows extends CursorWrapper implements Rows {
+    CursorRows(Cursor cursor) {
+      super(cursor);
+    }
+  }
+
+  /**
+   * A cursor over rows visited only forward, such as merged rows, keeping
+   * the rows read for moving back. Its count is of the rows read so far,
+   * and moving past them reads on, so a page of candidates reads no more
+   * than the page.
+   */
+  private static class RowsCursor extends AbstractCursor {
+    private final Rows rows;
+    private final String[] columns;
+    private final List<String[]> read = new ArrayList<String[]>();
+    private boolean more = true;
+
+    RowsCursor(Rows rows, String[] columns) {
+      this.rows = rows;
+      this.columns = columns;
+      read.add(copy());
+    }
+
+    private String[] copy() {
+      String[] row = new String[columns.length];
+      for (int i = 0; i < row.length; i++) row[i] = rows.getString(i);
+      return row;
+    }
+
+    private void fill(int n) {
+      while (more && read.size() < n) {
+        more = rows.moveToNext();
+        if (more) read.add(copy());
+        else rows.close();
+      }
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+      fill(position + 1);
+      return super.moveToPosition(position);
+    }
+
+    @Override
+    public int getCount() {
+      return read.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return columns;
+    }
+
+    @Override
+    public String getString(int column) {
+      return read.get(mPos)[column];
+    }
+
+    @Override
+    public short getShort(int column) {
+      return Short.parseShort(getString(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+      return Integer.parseInt(getString(column));
+    }
+
+    @Override
+    public long getLong(int column) {
+      return Long.parseLong(getString(column));
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return Float.parseFloat(getString(column));
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return Double.parseDouble(getString(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return getString(column) == null;
+    }
+
+    @Override
+    public void close() {
+      super.close();
+      if (more) rows.close();
+      more = false;
+    }
+  }
+}
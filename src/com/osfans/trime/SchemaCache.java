@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime;
+
+import android.support.v4.util.LruCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.osfans.trime.engine.Schema;
+import com.osfans.trime.engine.Speller;
+import com.osfans.trime.engine.Translator;
+
+/**
+ * Keeps the parsed settings, compiled rules, lookup table and format caches
+ * of recently used schemas, so that switching back to a schema does not
+ * rebuild them.
+ * Least recently used schemas are dropped when the estimated memory of all
+ * schemas exceeds the budget; the current schema is always kept.
+ */
+public class SchemaCache {
+  private static final int FORMAT_CACHE_SIZE = 256;
+  // Rough heap cost of a parsed yaml map per source char, and of a cached string.
+  private static final int YAML_CHAR_BYTES = 8;
+  private static final int CACHE_ENTRY_BYTES = 128;
+
+  /**
+   * State derived from one schema.
+   */
+  public static class Entry {
+    public final Map<String,Object> schema;
+    public final int schemaLength;
+    public Schema compiled;
+    public Speller speller;
+    public Translator translator;
+    public CodeTable codeTable;
+    public final LruCache<String, String> preeditCache = new LruCache<String, String>(FORMAT_CACHE_SIZE);
+    public final LruCache<String, String> commentCache = new LruCache<String, String>(FORMAT_CACHE_SIZE);
+
+    public Entry(Map<String,Object> schema, int schemaLength) {
+      this.schema = schema;
+      this.schemaLength = schemaLength;
+    }
+
+    /** Returns the estimated heap size in bytes. */
+    public long getSize() {
+      long size = (long)schemaLength * YAML_CHAR_BYTES;
+      size += (long)(preeditCache.size() + commentCache.size()) * CACHE_ENTRY_BYTES;
+      if (codeTable != null) size += codeTable.getSize();
+      return size;
+    }
+  }
+
+  private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(4, 0.75f, true);
+  private long budget;
+
+  public SchemaCache(long budget) {
+    this.budget = budget;
+  }
+
+  public synchronized Entry get(int id) {
+    return entries.get(id);
+  }
+
+  public synchronized void put(int id, Entry entry) {
+    entries.put(id, entry);
+    trim();
+  }
+
+  public synchronized void setBudget(long budget) {
+    this.budget = budget;
+    trim();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /** Returns the estimated heap size of all schemas in bytes. */
+  public synchronized long getSize() {
+    long size = 0;
+    for (Entry e: entries.values()) size += e.getSize();
+    return size;
+  }
+
+  private void trim() {
+    long size = getSize();
+    Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+    while (size > budget && entries.size() > 1 && it.hasNext()) {
+      Map.Entry<Integer, Entry> e = it.next();
+      size -= e.getValue().getSize();
+      it.remove();
+    }
+  }
+
+  /**
+   * Returns the estimated size of each schema, most recent last.
+   */
+  public synchronized String getStats() {
+    StringBuilder sb = new StringBuilder();
+    long size = 0;
+    for (Map.Entry<Integer, Entry> e: entries.entrySet()) {
+      long n = e.getValue().getSize();
+      size += n;
+      sb.append(String.format("schema %d: %d KB\n", e.getKey(), n / 1024));
+    }
+    sb.append(String.format("total: %d / %d KB", size / 1024, budget / 1024));
+    return sb.toString();
+  }
+}
@@ -31,12 +31,16 @@ import android.content.DialogInterface;
 import android.view.Window;
 import android.view.WindowManager;
 import android.content.Intent;
+import android.os.Handler;
+
+import java.util.ArrayList;
 
 /**
  * Abstract class extended by all Dialect IME.
  */
 public class TRIME extends InputMethodService implements 
     KeyboardView.OnKeyboardActionListener, CandidateView.CandidateViewListener {
+  private static final int MAX_NEARBY_KEYS = 4;
 
   protected KeyboardView inputView;
   private CandidatesContainer candidatesContainer;
@@ -46,10 +50,21 @@ public class TRIME extends InputMethodService implements
   private int orientation;
 
   protected StringBuilder composingText = new StringBuilder();
+  private ArrayList<int[]> composingKeys = new ArrayList<int[]>();
+  private int[] nearbyKeys;
   private boolean canCompose;
   private boolean enterAsLineBreak;
-  private boolean isLeftApo = true;
-  private boolean isLeftQuote = true;
+  private String learnWord, learnCode; //待學習的候選及編碼
+  private boolean burst; //正在處理實體鍵盤按鍵
+  private boolean lookupPending;
+  private final Handler handler = new Handler();
+  private final Runnable lookup = new Runnable() {
+    @Override
+    public void run() {
+      lookupPending = false;
+      if (hasComposingText()) updateCandidates();
+    }
+  };
 
   protected int[] keyboardIds;
   protected int dictionaryId;
@@ -89,15 +104,19 @@ public class TRIME extends InputMethodService implements
     initKeyboard();
   }
 
+  /** Imports in the background; the dictionary is reloaded when the import is done. */
   public void importDatabase(String fn) {
     dialectDictionary.getHelper().importDatabase(fn);
-    initDictionary();
   }
 
   public void exportDatabase(String fn) {
     dialectDictionary.getHelper().exportDatabase(fn);
   }
 
+  public String getSchemaCacheStats() {
+    return dialectDictionary.getSchemaCacheStats();
+  }
+
   @Override
   public void onConfigurationChanged(Configuration newConfig) {
     if (orientation != newConfig.orientation) {
@@ -162,6 +181,7 @@ public class TRIME extends InputMethodService implements
     // Clear composing as any active composing text will be finished, same as in
     // onFinishInputView, onFinishCandidatesView, and onUnbindInput.
     clearComposingText();
+    dialectDictionary.learn(null, null);
     super.onFinishInput();
   }
 
@@ -194,6 +214,7 @@ public class TRIME extends InputMethodService implements
       inputView.setTextSize(i);
       inputView.setKeyboard(sk);
       inputView.setPreviewEnabled(dialectDictionary.isKeyboardPreview());
+      inputView.setProximityCorrectionEnabled(dialectDictionary.isCorrectTypo());
       //updateCursorCapsToInputView();
     }
   }
@@ -229,6 +250,8 @@ public class TRIME extends InputMethodService implements
   private void commitText(CharSequence text) {
     InputConnection ic = getCurrentInputConnection();
     if (ic != null) {
+      dialectDictionary.learn(learnWord, learnCode);
+      learnWord = learnCode = null;
       if (text.length() > 1) {
         // Batch edit a sequence of characters.
         ic.beginBatchEdit();
@@ -242,9 +265,13 @@ public class TRIME extends InputMethodService implements
   }
 
   private CharSequence getLastText() {
+    return getLastText(1);
+  }
+
+  private CharSequence getLastText(int n) {
     InputConnection ic = getCurrentInputConnection();
     if (ic != null) {
-      return ic.getTextBeforeCursor(1,0);
+      return ic.getTextBeforeCursor(n,0);
     }
     return "";
   }
@@ -265,7 +292,6 @@ public class TRIME extends InputMethodService implements
     private boolean processKey(KeyEvent event) {
         int keyCode = event.getKeyCode();
         int keyChar = 0;
-        CharSequence keyText = "";
         if (KeyEvent.KEYCODE_SPACE == keyCode && event.isShiftPressed()) {
             keyChar = Keyboard.KEYCODE_MODE_NEXT;
             onKey(keyChar, null);
@@ -279,34 +305,8 @@ public class TRIME extends InputMethodService implements
         } else if (!event.isShiftPressed() && keyCode >= KeyEvent.KEYCODE_0
                 && keyCode <= KeyEvent.KEYCODE_9) {
             keyChar = keyCode - KeyEvent.KEYCODE_0 + '0';
-        } else if (keyCode == KeyEvent.KEYCODE_COMMA) {
-            keyText = event.isShiftPressed() ? "《" : "，";
-        } else if (keyCode == KeyEvent.KEYCODE_PERIOD) {
-            keyText = event.isShiftPressed() ? "》" : "。";
-        } else if (keyCode == KeyEvent.KEYCODE_SEMICOLON) {
-            keyText = event.isShiftPressed() ? "：" : "；";
-        } else if (keyCode == KeyEvent.KEYCODE_SLASH) {
-            keyText = event.isShiftPressed() ? "？" : "、";
-        } else if (keyCode == KeyEvent.KEYCODE_BACKSLASH) {
-            keyText = "、";
-        } else if (keyCode == KeyEvent.KEYCODE_MINUS && event.isShiftPressed()) {
-            keyText = "——";
-        } else if (keyCode == KeyEvent.KEYCODE_APOSTROPHE && !event.isShiftPressed()) {
-            keyText = isLeftApo ? "‘" : "’";
-            isLeftApo = !isLeftApo;
-        } else if (keyCode == KeyEvent.KEYCODE_APOSTROPHE && event.isShiftPressed()) {
-            keyText = isLeftQuote ? "“" : "”";
-            isLeftQuote = !isLeftQuote;
-        } else if (keyCode == KeyEvent.KEYCODE_1 && event.isShiftPressed()) {
-            keyText = "！";
-        } else if (keyCode == KeyEvent.KEYCODE_4 && event.isShiftPressed()) {
-            keyText =  "￥";
-        } else if (keyCode == KeyEvent.KEYCODE_6 && event.isShiftPressed()) {
-            keyText = "……";
-        } else if (keyCode == KeyEvent.KEYCODE_9 && event.isShiftPressed()) {
-            keyText = "（";
-        } else if (keyCode == KeyEvent.KEYCODE_0 && event.isShiftPressed()) {
-            keyText = "）";
+        } else if (dialectDictionary.getPunctuator().has(event.getUnicodeChar())) {
+            keyChar = event.getUnicodeChar(); //標點由handleKey查表
         } else if (keyCode == KeyEvent.KEYCODE_SPACE) {
             keyChar = ' ';
         } else if (keyCode == KeyEvent.KEYCODE_APOSTROPHE) {
@@ -318,18 +318,18 @@ public class TRIME extends InputMethodService implements
         } else if (keyCode == KeyEvent.KEYCODE_GRAVE) {
             keyChar = '`';
         }
-        if (keyText.length() > 0) {
-            if (candidatesContainer != null) candidatesContainer.pickHighlighted(-1);
-            commitText(keyText);
-            return true;
-        } else if (0 != keyChar) {
+        if (0 != keyChar) {
+            burst = true; //連續按鍵只查詢一次
             onKey(keyChar, null);
+            burst = false;
             return true;
         }
         return false;
     }
 
   public void onKey(int primaryCode, int[] keyCodes) {
+    String s = String.valueOf((char) primaryCode);
+    if (!isAlphabet(s) && !isDelimiter(s) && primaryCode != Keyboard.KEYCODE_DELETE) flushLookup(); //連續退格也只查詢一次
     if (keyboardSwitch.onKey(primaryCode)) {
       escape();
       bindKeyboardToInputView();
@@ -352,6 +352,37 @@ public class TRIME extends InputMethodService implements
     return isChinese() && hasComposingText() && dialectDictionary.isDelimiter(s);
   }
 
+  public void onText(CharSequence text, int[] keyCodes) {
+    nearbyKeys = keyCodes;
+    onText(text);
+    nearbyKeys = null;
+  }
+
+  /**
+   * Returns the codes of the typed key followed by its adjacent alphabet
+   * keys, nearest first.
+   */
+  private int[] getNearbyKeys(char c) {
+    int[] keys = new int[MAX_NEARBY_KEYS];
+    int n = 0;
+    keys[n++] = c;
+    if (nearbyKeys != null) {
+      for (int k: nearbyKeys) {
+        if (n >= MAX_NEARBY_KEYS) break;
+        if (k > ' ' && k != c && dialectDictionary.isAlphabet(String.valueOf((char)k), true)) keys[n++] = k;
+      }
+    }
+    int[] ret = new int[n];
+    System.arraycopy(keys, 0, ret, 0, n);
+    return ret;
+  }
+
+  private void addComposingKeys(CharSequence text) {
+    for (int i = 0; i < text.length(); i++) {
+      composingKeys.add(text.length() == 1 ? getNearbyKeys(text.charAt(i)) : new int[]{text.charAt(i)});
+    }
+  }
+
   public void onText(CharSequence text) {
     if(inputView.isShifted() && text.length() > 0) { //換檔輸出大寫字母
         for (char c: text.toString().toCharArray()){
@@ -363,32 +394,76 @@ public class TRIME extends InputMethodService implements
     if (isDelimiter(text)) {
         if (!composingText.toString().endsWith(dialectDictionary.getDelimiter())) {
             composingText.append(dialectDictionary.getDelimiter());  //手動切分音节
+            addComposingKeys(dialectDictionary.getDelimiter());
             updateComposingText();
         }
     } else if (isAlphabet(text)) {
         String r = composingText.toString();
         String s = dialectDictionary.correctSpell(r, text);
         if (s == null && !dialectDictionary.hasDelimiter()) {
+            flushLookup();
             if (candidatesContainer != null) candidatesContainer.pickHighlighted(-1); //自動上屏
             s = dialectDictionary.correctSpell("", text);
+            composingKeys.clear();
         }
         if (s != null) {
             composingText.setLength(0);
             composingText.append(s);
-            Cursor cursor = dialectDictionary.getWord(composingText);
-            setCandidates(cursor, true);
-            if (dialectDictionary.isAutoSelect(composingText) && cursor != null && cursor.getCount() == 1) {
-                if (candidatesContainer != null) candidatesContainer.pickHighlighted(0);
-            } else {
-                updateComposingText();
+            addComposingKeys(text);
+            if (burst && !dialectDictionary.isAutoSelect(composingText)) {
+                if (!lookupPending) { //等已到達的按鍵處理完再查詢
+                    lookupPending = true;
+                    handler.post(lookup);
+                }
+                return;
             }
+            updateCandidates();
         }
     } else {
+        flushLookup();
         if (candidatesContainer != null) candidatesContainer.pickHighlighted(-1);
+        if (text.length() == 1 && handlePunct(text.charAt(0))) return;
         commitText(text);
     }
   }
 
+  /**
+   * Looks up the composing text and shows its candidates.
+   */
+  private void updateCandidates() {
+    cancelLookup();
+    String word = dialectDictionary.isAutoSelect(composingText) ? dialectDictionary.getUniqueWord(composingText) : null;
+    if (word != null) { //唯一候選自動上屏
+        onPickCandidate(word);
+        return;
+    }
+    Cursor cursor = dialectDictionary.getWord(composingText);
+    if (cursor == null && composingKeys.size() > 1 && dialectDictionary.isCorrectTypo()) { //糾正誤觸
+        String s = dialectDictionary.correctTypo(composingKeys);
+        if (s != null) {
+            composingText.setLength(0);
+            composingText.append(s);
+            cursor = dialectDictionary.getWord(composingText);
+        }
+    }
+    setCandidates(cursor, true);
+    updateComposingText();
+  }
+
+  private void cancelLookup() {
+    if (lookupPending) {
+      handler.removeCallbacks(lookup);
+      lookupPending = false;
+    }
+  }
+
+  /**
+   * Runs a deferred lookup now, before a key that needs the candidates.
+   */
+  private void flushLookup() {
+    if (lookupPending) updateCandidates();
+  }
+
   public void onPress(int primaryCode) {
     effect.vibrate();
     effect.playSound(primaryCode);
@@ -419,6 +494,8 @@ public class TRIME extends InputMethodService implements
     String[] s = candidate.split("\t", 2);
     String sc = dialectDictionary.toSC(s[0]);
     String py = s[1].length() > 0 ? s[1] : composingText.toString();
+    learnWord = s[0];
+    learnCode = composingText.length() > 0 ? composingText.toString() : null;
     commitText(composingText.length() > 0 && dialectDictionary.isCommitPy() ? String.format("%s(%s)", sc, py) : sc);
     setCandidates(dialectDictionary.getAssociation(s[0]), false);
   }
@@ -436,6 +513,8 @@ public class TRIME extends InputMethodService implements
   }
 
   public void clearComposingText() {
+    cancelLookup();
+    composingKeys.clear();
     if (hasComposingText()) {
       // Clear composing only when there's composing-text to avoid the selected
       // text being cleared unexpectedly.
@@ -583,6 +662,7 @@ public class TRIME extends InputMethodService implements
             escape();
         } else if (hasComposingText()) {
             composingText.deleteCharAt(composingText.length() - 1);
+            if (!composingKeys.isEmpty()) composingKeys.remove(composingKeys.size() - 1);
             onText("");
         } else {
             escape();
@@ -649,9 +729,26 @@ public class TRIME extends InputMethodService implements
     if (isInputViewShown() && inputView.isShifted()) {
       keyCode = Character.toUpperCase(keyCode);
     }
+    if (handlePunct(keyCode)) return;
     commitText(String.valueOf((char) keyCode));
   }
 
+  /**
+   * Commits the punctuation of a key in Chinese mode. Pressing the same key
+   * again replaces the punctuation just committed with the next one.
+   */
+  private boolean handlePunct(int keyCode) {
+    Punctuator punctuator = dialectDictionary.getPunctuator();
+    if (!isChinese() || !punctuator.has(keyCode)) return false;
+    String last = punctuator.getCycleText(keyCode);
+    InputConnection ic = getCurrentInputConnection();
+    if (last != null && ic != null && last.contentEquals(getLastText(last.length()))) {
+      ic.deleteSurroundingText(last.length(), 0);
+    } else punctuator.reset();
+    commitText(punctuator.punct(keyCode));
+    return true;
+  }
+
   /**
    * Simulates PC Esc-key function by clearing all composing-text or candidates.
    */
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.yaml.snakeyaml.Yaml;
+
+import com.osfans.trime.engine.BatchConverter;
+import com.osfans.trime.engine.JdbcStorage;
+import com.osfans.trime.engine.Schema;
+import com.osfans.trime.engine.Speller;
+import com.osfans.trime.engine.Storage;
+import com.osfans.trime.engine.StoragePool;
+
+/**
+ * Converts a romanized text file to hanzi with a schema of trime.db and
+ * reports the throughput. Needs a SQLite JDBC driver with FTS4 on the
+ * class path.
+ *
+ * <pre>
+ * java -cp trime-tools.jar:snakeyaml.jar:sqlite-jdbc.jar com.osfans.trime.tools.BatchConvert
+ *     [--db trime.db] [--threads 4] schema_id in.txt out.txt
+ * </pre>
+ */
+public class BatchConvert {
+  public static void main(String[] args) throws Exception {
+    String db = "trime.db";
+    int threads = Runtime.getRuntime().availableProcessors();
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if (args[i].equals("--db")) db = args[++i];
+      else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+    }
+    if (args.length - i != 3) {
+      System.err.println("Usage: BatchConvert [--db trime.db] [--threads n] schema_id in.txt out.txt");
+      System.exit(1);
+    }
+    final String url = "jdbc:sqlite:" + db;
+    StoragePool storage = new StoragePool(new StoragePool.Factory() {
+      @Override
+      public Storage open() {
+        try {
+          return new JdbcStorage(DriverManager.getConnection(url));
+        } catch (SQLException e) {
+          throw new RuntimeException("Error open " + url, e);
+        }
+      }
+    }, threads); //每個線程一個連接
+    Storage.Rows rows = storage.query("select full from schema where schema_id = ?", new String[]{args[i]});
+    if (rows == null) throw new IllegalArgumentException("No schema " + args[i]);
+    String full = rows.getString(0);
+    rows.close();
+    Yaml yaml = new Yaml();
+    @SuppressWarnings("unchecked")
+    Map<String,Object> defaults = (Map<String,Object>)yaml.load(BatchConvert.class.getResourceAsStream("/assets/default.yaml"));
+    @SuppressWarnings("unchecked")
+    Map<String,Object> settings = (Map<String,Object>)yaml.load(full);
+    Schema schema = new Schema(settings, defaults);
+    String table = (String)schema.getValue("translator", "dictionary");
+
+    Reader in = new InputStreamReader(new FileInputStream(args[i + 1]), "UTF-8");
+    Writer out = new OutputStreamWriter(new FileOutputStream(args[i + 2]), "UTF-8");
+    BatchConverter converter = new BatchConverter(storage, new Speller(schema), table, threads);
+    System.out.println(converter.convert(in, out));
+    in.close();
+    out.close();
+    storage.close();
+  }
+}
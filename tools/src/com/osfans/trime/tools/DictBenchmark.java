@@ -0,0 +1,290 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.yaml.snakeyaml.Yaml;
+
+import com.osfans.trime.engine.Engine;
+import com.osfans.trime.engine.ImportPipeline;
+import com.osfans.trime.engine.JdbcStorage;
+import com.osfans.trime.engine.LineReader;
+import com.osfans.trime.engine.Schema;
+import com.osfans.trime.engine.Session;
+import com.osfans.trime.engine.Speller;
+import com.osfans.trime.engine.Storage;
+import com.osfans.trime.engine.StoragePool;
+import com.osfans.trime.engine.Translator;
+
+/**
+ * Imports .dict.yaml files into a local SQLite database over JDBC and
+ * measures import speed, lookup latency percentiles and memory use of the
+ * queries Dictionary issues, directly and through the engine. Needs a
+ * SQLite JDBC driver with FTS4, such as sqlite-jdbc, on the class path.
+ * Files are imported through the engine's {@link ImportPipeline} as on the
+ * device, parsed by {@code --threads} workers, all cores by default.
+ * With {@code --sessions}, also types the sampled codes in that many
+ * parallel engine sessions sharing a pool of read connections.
+ *
+ * <pre>
+ * java -cp trime-tools.jar:snakeyaml.jar:sqlite-jdbc.jar com.osfans.trime.tools.DictBenchmark
+ *     [--db bench.db] [--queries 1000] [--threads 4] [--sessions 4] a.dict.yaml [b.dict.yaml ...]
+ * </pre>
+ */
+public class DictBenchmark {
+  private static final int BATCH_SIZE = 5000;
+  private static final int SAMPLES = 1000;
+
+  private final String url;
+  private final Connection conn;
+  private final Random random = new Random(1);
+
+  public DictBenchmark(String url) throws SQLException {
+    this.url = url;
+    conn = DriverManager.getConnection(url);
+  }
+
+  /**
+   * Imports a dictionary as DictionaryHelper does: the header is read by
+   * {@link ImportPipeline#readHeader}, rows are inserted one by one and
+   * committed every {@link #BATCH_SIZE} rows at a batch boundary. Returns a
+   * sample of its codes.
+   */
+  private List<String> importDict(File file, String[] name, int threads) throws Exception {
+    LineReader br = new LineReader(new FileInputStream(file));
+    final List<String> codes = new ArrayList<String>(SAMPLES);
+    try {
+      Map<?, ?> header = (Map<?, ?>)new Yaml().load(ImportPipeline.readHeader(br));
+      String table = (header == null) ? null : (String)header.get("name");
+      if (table == null) throw new IllegalArgumentException("No name in " + file);
+      name[0] = table;
+
+      Statement st = conn.createStatement();
+      st.execute("DROP TABLE IF EXISTS " + table);
+      st.execute(String.format("CREATE VIRTUAL TABLE %s USING fts4(hz, py, prefix=\"1,2,3\")", table));
+      conn.setAutoCommit(false);
+      final PreparedStatement insert = conn.prepareStatement(String.format("INSERT INTO %s(hz, py) VALUES(?, ?)", table));
+      long start = System.nanoTime();
+      long count = new ImportPipeline(threads).run(br, new ImportPipeline.Sink() {
+        long count, committed;
+
+        @Override
+        public void write(String hz, String py) {
+          try {
+            insert.setString(1, hz);
+            insert.setString(2, py);
+            insert.executeUpdate();
+          } catch (SQLException e) {
+            throw new RuntimeException("Error insert " + hz, e);
+          }
+          count++;
+          if (codes.size() < SAMPLES) codes.add(py);
+          else if (random.nextInt((int)Math.min(count, Integer.MAX_VALUE)) < SAMPLES) codes.set(random.nextInt(SAMPLES), py);
+        }
+
+        @Override
+        public void onBatch(long offset) {
+          if (count - committed < BATCH_SIZE) return;
+          try {
+            conn.commit(); //與導入一樣分批提交
+          } catch (SQLException e) {
+            throw new RuntimeException("Error commit", e);
+          }
+          committed = count;
+        }
+
+        @Override
+        public void onProgress(long rows) {
+        }
+      });
+      insert.close();
+      st.execute(String.format("INSERT INTO %s(%s) VALUES('optimize')", table, table));
+      conn.commit();
+      conn.setAutoCommit(true);
+      st.close();
+      double sec = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%s: imported %d rows in %.1f s, %.0f rows/s, %d parsers%n", table, count, sec, count / sec, threads);
+    } finally {
+      br.close();
+    }
+    return codes;
+  }
+
+  private long run(PreparedStatement ps, String arg) throws SQLException {
+    long start = System.nanoTime();
+    ps.setString(1, arg);
+    ResultSet rs = ps.executeQuery();
+    while (rs.next()) rs.getString(1);
+    rs.close();
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long[] t) {
+    Arrays.sort(t);
+    int n = t.length;
+    System.out.printf("  %-8s p50 %7.3f ms  p90 %7.3f ms  p99 %7.3f ms  max %7.3f ms%n", name,
+      t[n / 2] / 1e6, t[n * 9 / 10] / 1e6, t[Math.min(n - 1, n * 99 / 100)] / 1e6, t[n - 1] / 1e6);
+  }
+
+  /**
+   * Runs the word, prefix and phrase queries of Dictionary on sampled codes.
+   */
+  private void lookup(String table, List<String> codes, int queries) throws SQLException {
+    PreparedStatement word = conn.prepareStatement(String.format("select hz from %s where py match ? and not glob('* *', py)", table));
+    PreparedStatement prefix = conn.prepareStatement(String.format("select hz from %s where py match ? and not glob('* *', py) limit 100", table));
+    PreparedStatement phrase = conn.prepareStatement(String.format("select hz from %s where py match ? limit 100", table));
+    Translator translator = getTranslator();
+    long[] tw = new long[queries], tp = new long[queries], tf = new long[queries], te = new long[queries];
+    for (int i = 0; i < queries; i++) {
+      String code = codes.get(random.nextInt(codes.size()));
+      String first = code.split(" ")[0];
+      tw[i] = run(word, first);
+      tp[i] = run(prefix, first.substring(0, Math.min(2, first.length())) + "*");
+      tf[i] = run(phrase, String.format("\"^%s*\"", code.replace(" ", "* ")));
+      long start = System.nanoTime();
+      Translator.readRows(translator.getWord(code.replace(' ', '\''), table, "hz", false, false, 0));
+      te[i] = System.nanoTime() - start;
+    }
+    word.close();
+    prefix.close();
+    phrase.close();
+    report("word", tw);
+    report("prefix", tp);
+    report("phrase", tf);
+    report("engine", te);
+  }
+
+  /**
+   * Returns the engine lookup of a schema with the delimiter ', which
+   * runs the same query fallbacks as on the device.
+   */
+  private Translator getTranslator() {
+    Map<String, Object> speller = new HashMap<String, Object>();
+    speller.put("delimiter", "'");
+    Map<String, Object> schema = new HashMap<String, Object>();
+    schema.put("speller", speller);
+    return new Translator(new JdbcStorage(conn), new Speller(new Schema(schema, null)));
+  }
+
+  /**
+   * Types sampled codes key by key in parallel sessions of one engine,
+   * picking the first candidate of each, and reports the lookups per
+   * second over all sessions.
+   */
+  private void sessions(String table, List<String> codes, int threads, int queries) throws Exception {
+    Map<String, Object> speller = new HashMap<String, Object>();
+    speller.put("delimiter", "'");
+    speller.put("alphabet", "abcdefghijklmnopqrstuvwxyz0123456789");
+    Map<String, Object> translator = new HashMap<String, Object>();
+    translator.put("dictionary", table);
+    Map<String, Object> schema = new HashMap<String, Object>();
+    schema.put("speller", speller);
+    schema.put("translator", translator);
+    StoragePool pool = new StoragePool(new StoragePool.Factory() {
+      @Override
+      public Storage open() {
+        try {
+          return new JdbcStorage(DriverManager.getConnection(url));
+        } catch (SQLException e) {
+          throw new RuntimeException("Error open " + url, e);
+        }
+      }
+    }, threads);
+    final Engine engine = new Engine(pool);
+    engine.putSchema(table, new Schema(schema, null));
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>(threads);
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final String id = table;
+      final List<String> typed = new ArrayList<String>(queries / threads);
+      for (int i = 0; i < queries / threads; i++) typed.add(codes.get(random.nextInt(codes.size())).replace(' ', '\''));
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          Session session = engine.openSession(id);
+          int lookups = 0;
+          for (String code: typed) {
+            for (int i = 0; i < code.length(); i++) {
+              session.onText(code.substring(i, i + 1));
+              lookups++;
+            }
+            session.pick(0);
+          }
+          return lookups;
+        }
+      }));
+    }
+    long lookups = 0;
+    for (Future<Integer> f: futures) lookups += f.get();
+    double sec = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    System.out.printf("  sessions %d, %d lookups in %.2f s, %.0f lookups/s, %d connections%n",
+      threads, lookups, sec, lookups / sec, pool.getSize());
+    engine.close();
+  }
+
+  private static long usedMemory() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) rt.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  public static void main(String[] args) throws Exception {
+    String db = "bench.db";
+    int queries = 1000;
+    int sessions = 0;
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--db")) db = args[++i];
+      else if (args[i].equals("--queries")) queries = Integer.parseInt(args[++i]);
+      else if (args[i].equals("--sessions")) sessions = Integer.parseInt(args[++i]);
+      else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+      else files.add(new File(args[i]));
+    }
+    DictBenchmark bench = new DictBenchmark("jdbc:sqlite:" + db);
+    for (File f: files) {
+      long mem = usedMemory();
+      String[] name = new String[1];
+      List<String> codes = bench.importDict(f, name, threads);
+      bench.lookup(name[0], codes, queries);
+      if (sessions > 0) bench.sessions(name[0], codes, sessions, queries);
+      System.out.printf("  heap %+d KB, db %d KB%n", (usedMemory() - mem) / 1024, new File(db).length() / 1024);
+    }
+    bench.conn.close();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.tools;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic .dict.yaml for scaling tests.
+ *
+ * <pre>
+ * java com.osfans.trime.tools.DictGenerator [--rows 10000] [--name synth]
+ *     [--phrase-max 4] [--phrase-ratio 0.5] [--dist zipf|uniform] [--seed 1]
+ *     [--out synth.dict.yaml]
+ * </pre>
+ *
+ * Syllables are drawn from all initial and final pairs, either uniformly
+ * or by a Zipf distribution. Words mix the basic CJK block with Unicode
+ * Ext-A to Ext-D, as real dialect tables do.
+ */
+public class DictGenerator {
+  private static final String[] INITIALS = {"", "b", "p", "m", "f", "d", "t", "n", "l",
+    "g", "k", "h", "j", "q", "x", "zh", "ch", "sh", "r", "z", "c", "s", "y", "w"};
+  private static final String[] FINALS = {"a", "o", "e", "ai", "ei", "ao", "ou", "an", "en",
+    "ang", "eng", "ong", "i", "ia", "ie", "iao", "iu", "ian", "in", "iang", "ing", "iong",
+    "u", "ua", "uo", "uai", "ui", "uan", "un", "uang", "v", "ve", "er"};
+  // Code point ranges and their shares: CJK, Ext-A, Ext-B, Ext-C, Ext-D.
+  private static final int[][] RANGES = {{0x4E00, 0x9FA5, 70}, {0x3400, 0x4DB5, 10},
+    {0x20000, 0x2A6D6, 14}, {0x2A700, 0x2B734, 4}, {0x2B740, 0x2B81D, 2}};
+
+  private final Random random;
+  private final String[] syllables;
+  private final double[] weights;
+
+  public DictGenerator(long seed, boolean zipf) {
+    random = new Random(seed);
+    List<String> list = new ArrayList<String>();
+    for (String i: INITIALS) {
+      for (String f: FINALS) list.add(i + f);
+    }
+    syllables = list.toArray(new String[list.size()]);
+    weights = new double[syllables.length];
+    double sum = 0;
+    for (int i = 0; i < weights.length; i++) {
+      sum += zipf ? 1.0 / (i + 1) : 1.0;
+      weights[i] = sum;
+    }
+    for (int i = 0; i < weights.length; i++) weights[i] /= sum;
+  }
+
+  private String nextSyllable() {
+    double r = random.nextDouble();
+    int lo = 0, hi = weights.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (weights[mid] < r) lo = mid + 1;
+      else hi = mid;
+    }
+    return syllables[lo];
+  }
+
+  private int nextChar() {
+    int r = random.nextInt(100);
+    for (int[] range: RANGES) {
+      if (r < range[2]) return range[0] + random.nextInt(range[1] - range[0] + 1);
+      r -= range[2];
+    }
+    return RANGES[0][0];
+  }
+
+  public void write(Writer w, String name, long rows, int phraseMax, double phraseRatio) throws IOException {
+    w.write("# Synthetic dictionary generated by DictGenerator\n");
+    w.write("---\n");
+    w.write(String.format("name: %s\nversion: \"1\"\nsort: original\n", name));
+    w.write("...\n");
+    StringBuilder hz = new StringBuilder();
+    StringBuilder py = new StringBuilder();
+    for (long i = 0; i < rows; i++) {
+      int n = 1;
+      if (phraseMax > 1 && random.nextDouble() < phraseRatio) n = 2 + random.nextInt(phraseMax - 1);
+      hz.setLength(0);
+      py.setLength(0);
+      for (int j = 0; j < n; j++) {
+        hz.appendCodePoint(nextChar());
+        if (j > 0) py.append(' ');
+        py.append(nextSyllable());
+      }
+      w.write(hz.toString());
+      w.write('\t');
+      w.write(py.toString());
+      w.write('\n');
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    long rows = 10000;
+    String name = "synth";
+    int phraseMax = 4;
+    double phraseRatio = 0.5;
+    boolean zipf = true;
+    long seed = 1;
+    String out = null;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String k = args[i], v = args[i + 1];
+      if (k.equals("--rows")) rows = Long.parseLong(v);
+      else if (k.equals("--name")) name = v;
+      else if (k.equals("--phrase-max")) phraseMax = Integer.parseInt(v);
+      else if (k.equals("--phrase-ratio")) phraseRatio = Double.parseDouble(v);
+      else if (k.equals("--dist")) zipf = !v.equals("uniform");
+      else if (k.equals("--seed")) seed = Long.parseLong(v);
+      else if (k.equals("--out")) out = v;
+      else throw new IllegalArgumentException("Unknown option " + k);
+    }
+    if (out == null) out = name + ".dict.yaml";
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"), 1 << 16);
+    try {
+      new DictGenerator(seed, zipf).write(w, name, rows, phraseMax, phraseRatio);
+    } finally {
+      w.close();
+    }
+  }
+}
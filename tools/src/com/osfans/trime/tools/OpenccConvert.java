@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.osfans.trime.tools;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import com.osfans.trime.engine.Converter;
+import com.osfans.trime.engine.JdbcStorage;
+
+/**
+ * Converts a traditional Chinese text file to simplified Chinese with the
+ * opencc table of trime.db and reports the throughput. Needs a SQLite JDBC
+ * driver on the class path.
+ *
+ * <pre>
+ * java -cp trime-tools.jar:sqlite-jdbc.jar com.osfans.trime.tools.OpenccConvert
+ *     [--db trime.db] [--threads 4] in.txt out.txt
+ * </pre>
+ */
+public class OpenccConvert {
+  public static void main(String[] args) throws Exception {
+    String db = "trime.db";
+    int threads = Runtime.getRuntime().availableProcessors();
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if (args[i].equals("--db")) db = args[++i];
+      else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+    }
+    if (args.length - i != 2) {
+      System.err.println("Usage: OpenccConvert [--db trime.db] [--threads n] in.txt out.txt");
+      System.exit(1);
+    }
+    Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db);
+    Converter converter = new Converter(new JdbcStorage(conn));
+    Reader in = new InputStreamReader(new FileInputStream(args[i]), "UTF-8");
+    Writer out = new OutputStreamWriter(new FileOutputStream(args[i + 1]), "UTF-8");
+    System.out.println(converter.convert(in, out, threads));
+    in.close();
+    out.close();
+    conn.close();
+  }
+}